@@ -0,0 +1,25 @@
+package frc.robot.motors;
+
+/**
+ * A tiny first order plant standing in for a motor controller, so benchmarks
+ * exercise the real control math without any hardware
+ */
+class FakePlant {
+    double output;
+    double velocity;
+    double position;
+
+    /**
+     * Creates a motor bound to this plant. The plant advances one step every
+     * time the motor writes an output
+     */
+    Motor createMotor() {
+        return Motor.createDetached(() -> position, () -> velocity, this::step);
+    }
+
+    private void step(double output) {
+        this.output = output;
+        velocity += (output * 100 - velocity) * 0.02;
+        position += velocity * 0.002;
+    }
+}
@@ -0,0 +1,79 @@
+package frc.robot.motors;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import frc.robot.motors.Motor.SetMode;
+import frc.robot.motors.Motor.Slot;
+
+/**
+ * Measures the motor thread's work over a registry sized like a real robot.
+ * The motors are created through the hardware factories in simulation mode, so
+ * they go through the real registry and timing wheel, and the stepped clock
+ * runs each tick the way the motor thread does, simulated physics included.
+ * Every fourth motor follows the one before it and the rest alternate between
+ * velocity control at 500 Hz and position control at 100 Hz, like a drivebase
+ * plus mechanisms
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MotorRegistryBenchmark {
+    // one operation is a full lap of the slowest motors
+    private static final int ticksPerOperation = 10;
+
+    @Param({ "8", "16", "32" })
+    public int motorCount;
+
+    private Motor[] motors;
+    private int priority;
+
+    @Setup
+    public void setup() {
+        // each trial runs in its own fork, so the registry only holds this trial's motors
+        Motor.setSimulation(true);
+        Motor.setSteppedClock(true);
+        motors = new Motor[motorCount];
+        for (int i = 0; i < motorCount; i++) {
+            motors[i] = i % 2 == 0 ? Motor.createFalcon500(i + 1) : Motor.createNeo(i + 1);
+            motors[i].setPIDF(Slot.Position, 0.1, 0.001, 0.01, 0, 100);
+            motors[i].setPIDF(Slot.Velocity, 0.0002, 0.000001, 0, 1 / 6000.0, 100);
+            if (i % 4 == 3) {
+                motors[i].follow(motors[i - 1]);
+            } else if (i % 2 == 0) {
+                motors[i].set(SetMode.Velocity, 3000);
+            } else {
+                motors[i].setUpdateRate(100);
+                motors[i].set(SetMode.Position, 10);
+            }
+        }
+    }
+
+    /**
+     * Runs 10 ms of the motor thread, empty ticks included
+     */
+    @Benchmark
+    public Motor[] cycle() {
+        Motor.stepClock(ticksPerOperation);
+        return motors;
+    }
+
+    /**
+     * Rebuilds the registry snapshot and timing wheel, like any change to the
+     * update order or a motor's rate or priority does
+     */
+    @Benchmark
+    public Motor[] rebuild() {
+        priority ^= 1;
+        motors[0].setPowerPriority(priority);
+        return motors;
+    }
+}
@@ -0,0 +1,60 @@
+package frc.robot.motors;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import frc.robot.motors.Motor.SetMode;
+import frc.robot.motors.Motor.Slot;
+
+/**
+ * Measures one control cycle of a single motor in each closed loop mode, with
+ * and without the auxiliary loop. The motor is bound to a fake plant so the PID
+ * always has error to work on
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MotorUpdateBenchmark {
+    @Param({ "Position", "Velocity", "Sensor" })
+    public SetMode mode;
+
+    @Param({ "false", "true" })
+    public boolean useAux;
+
+    private FakePlant plant;
+    private Motor[] motors;
+    private long now;
+
+    @Setup
+    public void setup() {
+        plant = new FakePlant();
+        Motor motor = plant.createMotor();
+        motor.setSensorSource(() -> plant.position * 0.5);
+        motor.setAuxiliarySource(() -> plant.velocity * 0.25);
+        for (Slot slot : Slot.values()) {
+            motor.setPIDF(slot, 0.1, 0.001, 0.01, 0.05, 100);
+        }
+        if (useAux) {
+            motor.set(mode, 100, 10);
+        } else {
+            motor.set(mode, 100);
+        }
+        motors = new Motor[] { motor };
+        now = System.nanoTime();
+    }
+
+    @Benchmark
+    public double update() {
+        now += 2_000_000L;
+        Motor.runCycle(motors, now);
+        return plant.output;
+    }
+}
@@ -0,0 +1,100 @@
+package frc.robot.motors;
+
+/**
+ * Shares a total current budget between all registered motors by priority.
+ * Each motor's demand is its measured current divided by the output scale it
+ * was given, so a motor that has been scaled down still asks for what it
+ * would draw at full output. The highest priority gets its full demand first,
+ * the first priority that does not fit is scaled to whatever is left, and
+ * everything below it gets nothing beyond the minimum scale.
+ * <p>
+ * The budget itself shrinks while the battery is under the sag voltage and
+ * grows back once it recovers, so the whole robot backs off before the
+ * roboRIO browns out.
+ * </p>
+ * <p>
+ * Scales drop right away and recover at a limited rate, which keeps a motor
+ * from bouncing between full and scaled output as its current follows.
+ * </p>
+ */
+final class CurrentBudget {
+    // no motor is scaled below this, so low priorities are slowed rather than stopped
+    private static final double minMotorScale = 0.1;
+    // how far the budget can shrink when the battery sags
+    private static final double minVoltageScale = 0.3;
+    // budget fraction removed per second for each volt under the sag voltage
+    private static final double sagShrinkRate = 2;
+    // how fast budgets and motor scales grow back, fraction per second
+    private static final double recoverRate = 1;
+
+    private final double totalAmps;
+    private final double sagVoltage;
+
+    private double voltageScale = 1;
+    private long lastNanos;
+    private boolean hasRun;
+
+    // stats for telemetry
+    private volatile double available;
+    private volatile double drawn;
+
+    CurrentBudget(double totalAmps, double sagVoltage) {
+        this.totalAmps = totalAmps;
+        this.sagVoltage = sagVoltage;
+    }
+
+    /**
+     * Hands out the budget and sets every motor's budgetScale
+     *
+     * @param byPriority every motor, highest budgetPriority first
+     */
+    void allocate(Motor[] byPriority, double batteryVoltage, long nowNanos) {
+        double dt = hasRun ? (nowNanos - lastNanos) / 1e9 : 0;
+        lastNanos = nowNanos;
+        hasRun = true;
+
+        if (batteryVoltage < sagVoltage) {
+            voltageScale -= sagShrinkRate * (sagVoltage - batteryVoltage) * dt;
+        } else {
+            voltageScale += recoverRate * dt;
+        }
+        voltageScale = Math.max(minVoltageScale, Math.min(1, voltageScale));
+
+        double remaining = totalAmps * voltageScale;
+        available = remaining;
+        double total = 0;
+        int i = 0;
+        while (i < byPriority.length) {
+            int priority = byPriority[i].budgetPriority;
+            int end = i;
+            double demand = 0;
+            while (end < byPriority.length && byPriority[end].budgetPriority == priority) {
+                Motor m = byPriority[end];
+                total += m.measuredCurrent;
+                demand += m.measuredCurrent / Math.max(m.budgetScale, minMotorScale);
+                end++;
+            }
+            double scale = demand <= remaining ? 1 : Math.max(minMotorScale, remaining / demand);
+            remaining = Math.max(0, remaining - demand * scale);
+            for (; i < end; i++) {
+                Motor m = byPriority[i];
+                m.budgetScale = scale < m.budgetScale ? scale : Math.min(scale, m.budgetScale + recoverRate * dt);
+            }
+        }
+        drawn = total;
+    }
+
+    /**
+     * Gets the amps currently available after battery sag
+     */
+    double getAvailable() {
+        return available;
+    }
+
+    /**
+     * Gets the total measured current in amps
+     */
+    double getDrawn() {
+        return drawn;
+    }
+}
@@ -0,0 +1,90 @@
+package frc.robot.motors;
+
+/**
+ * A fixed-bucket latency histogram that never allocates after construction.
+ * Buckets are powers of two split into four sub-buckets each, which keeps
+ * percentiles within about 25% from nanoseconds up to seconds.
+ * <p>
+ * Samples are recorded by a single thread. Other threads may read the stats
+ * at any time, and a reset is only requested so the recording thread can do
+ * it between samples.
+ * </p>
+ */
+final class LatencyHistogram {
+    private static final int subBuckets = 4;
+    private static final int bucketCount = 64 * subBuckets;
+
+    private final long[] counts = new long[bucketCount];
+    private long total;
+    private volatile long max;
+    private volatile boolean resetRequested;
+
+    /**
+     * Records one sample in nanoseconds
+     */
+    void record(long nanos) {
+        if (resetRequested) {
+            clear();
+        }
+        if (nanos < 0) nanos = 0;
+        counts[bucketOf(nanos)]++;
+        total++;
+        if (nanos > max) max = nanos;
+    }
+
+    /**
+     * Asks the recording thread to clear the histogram before its next sample
+     */
+    void requestReset() {
+        resetRequested = true;
+    }
+
+    /**
+     * Gets the value at the given percentile in nanoseconds, between 0 and 1.
+     * The result is the upper bound of the bucket the percentile falls in
+     */
+    long percentile(double p) {
+        long n = total;
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(p * n);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getCount() {
+        return total;
+    }
+
+    private void clear() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = 0;
+        }
+        total = 0;
+        max = 0;
+        resetRequested = false;
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < subBuckets) return (int) nanos;
+        int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        // the two bits below the top bit pick the sub-bucket
+        int sub = (int) (nanos >>> (octave - 2)) & (subBuckets - 1);
+        return octave * subBuckets + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < subBuckets) return bucket;
+        int octave = bucket / subBuckets;
+        int sub = bucket % subBuckets;
+        return ((long) (subBuckets + sub + 1) << (octave - 2)) - 1;
+    }
+}
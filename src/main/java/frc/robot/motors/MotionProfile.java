@@ -0,0 +1,212 @@
+package frc.robot.motors;
+
+/**
+ * A point-to-point motion profile sampled into preallocated buffers. The
+ * profile is a trapezoid limited by max velocity and acceleration. When a jerk
+ * limit is given the trapezoid is run through a moving average as long as it
+ * takes to reach max acceleration at that jerk, which turns it into an S-curve
+ * covering the same distance. Between speeding up and slowing down the
+ * trapezoid always cruises for at least that long, otherwise the average would
+ * see the acceleration flip sign in one step and double the jerk; on short
+ * moves this lowers the peak acceleration instead.
+ * <p>
+ * A profile can start moving, so a move that is retargeted part way through
+ * carries on from the velocity it had instead of restarting from rest.
+ * </p>
+ * <p>
+ * Generating allocates nothing, so a profile can be rebuilt for every move.
+ * </p>
+ */
+final class MotionProfile {
+    static final int capacity = 2048;
+
+    // bisection steps used to find the peak velocity of a short move
+    private static final int solveIterations = 100;
+
+    private final double[] position = new double[capacity];
+    private final double[] velocity = new double[capacity];
+    private final double[] acceleration = new double[capacity];
+    private int length;
+    private double sampleDt;
+
+    // values at the last sampled time
+    double pos, vel, acc;
+
+    // trapezoid used while generating, relative to the start: it goes from the
+    // start velocity to the peak velocity, cruises, then slows to a stop
+    private double startVelocity, peakVelocity, maxAcceleration;
+    private double rampSlope, stopSlope, rampTime, cruiseTime, stopTime, trapTime;
+
+    /**
+     * Fills the buffers with a profile from start to target that starts at the
+     * given velocity and ends at rest. Time is in seconds and limits are in
+     * position units per second
+     *
+     * @param startVelocity the velocity at the start, 0 for a move from rest
+     * @param maxJerk the jerk limit, or 0 for a plain trapezoid
+     * @param minSampleDt the smallest spacing between samples, normally the
+     *                    motor's update period
+     */
+    void generate(double start, double startVelocity, double target, double maxVelocity, double maxAcceleration,
+            double maxJerk, double minSampleDt) {
+        this.maxAcceleration = maxAcceleration;
+        this.startVelocity = Math.max(-maxVelocity, Math.min(maxVelocity, startVelocity));
+        double jerkTime = maxJerk > 0 ? maxAcceleration / maxJerk : 0;
+
+        // the average before the start sees the start velocity, which adds half a
+        // window of travel that the trapezoid does not have to cover itself
+        double distance = target - start;
+        double trapDistance = distance - this.startVelocity * jerkTime / 2;
+
+        double peak;
+        if (trapDistance >= withCruise(maxVelocity, jerkTime)) {
+            peak = maxVelocity;
+        } else if (trapDistance <= withCruise(-maxVelocity, jerkTime)) {
+            peak = -maxVelocity;
+        } else {
+            // the distance grows with the peak velocity, so bisect for it
+            double low = -maxVelocity;
+            double high = maxVelocity;
+            for (int i = 0; i < solveIterations; i++) {
+                double mid = (low + high) / 2;
+                if (withCruise(mid, jerkTime) < trapDistance) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            peak = (low + high) / 2;
+            if (Math.abs(peak - this.startVelocity) < 1e-9 * maxVelocity) {
+                // already at the peak, the trapezoid only cruises and stops
+                peak = this.startVelocity;
+            }
+        }
+        setTrapezoid(peak);
+        cruiseTime = peak == 0 ? 0 : Math.max(0, (trapDistance - withoutCruise(peak)) / peak);
+        trapTime = rampTime + cruiseTime + stopTime;
+        double duration = trapTime + jerkTime;
+
+        sampleDt = Math.max(minSampleDt, duration / (capacity - 1));
+        length = Math.min(capacity, (int) Math.ceil(duration / sampleDt) + 1);
+
+        double p = 0;
+        for (int i = 0; i < length; i++) {
+            double t = i * sampleDt;
+            double v, a;
+            if (jerkTime > 0) {
+                v = (trapPosition(t) - trapPosition(t - jerkTime)) / jerkTime;
+                a = (trapVelocity(t) - trapVelocity(t - jerkTime)) / jerkTime;
+            } else {
+                v = trapVelocity(t);
+                a = trapAcceleration(t);
+            }
+            if (i > 0) {
+                p += (velocity[i - 1] + v) / 2 * sampleDt;
+            }
+            position[i] = p;
+            velocity[i] = v;
+            acceleration[i] = a;
+        }
+        // spread the small integration error over the profile so it ends exactly on target
+        double correction = length > 1 ? (distance - p) / (length - 1) : 0;
+        for (int i = 0; i < length; i++) {
+            position[i] = start + position[i] + correction * i;
+        }
+        position[length - 1] = target;
+        velocity[length - 1] = 0;
+        acceleration[length - 1] = 0;
+    }
+
+    /**
+     * Sets pos, vel and acc to the profile at the given time in seconds. Only
+     * called by the thread running the profile
+     *
+     * @return true once the profile has finished
+     */
+    boolean sample(double t) {
+        pos = interpolate(position, t);
+        vel = interpolate(velocity, t);
+        acc = interpolate(acceleration, t);
+        return t / sampleDt >= length - 1;
+    }
+
+    /**
+     * Gets the position at the given time without touching pos, vel and acc, so
+     * any thread can read a profile that is running
+     */
+    double positionAt(double t) {
+        return interpolate(position, t);
+    }
+
+    /**
+     * Gets the velocity at the given time without touching pos, vel and acc
+     */
+    double velocityAt(double t) {
+        return interpolate(velocity, t);
+    }
+
+    private double interpolate(double[] values, double t) {
+        double index = Math.max(0, t / sampleDt);
+        if (index >= length - 1) {
+            return values[length - 1];
+        }
+        int i = (int) index;
+        return values[i] + (values[i + 1] - values[i]) * (index - i);
+    }
+
+    /**
+     * Sets up the ramp and stop of a trapezoid through the given peak velocity
+     */
+    private void setTrapezoid(double peak) {
+        peakVelocity = peak;
+        rampSlope = Math.signum(peak - startVelocity) * maxAcceleration;
+        rampTime = Math.abs(peak - startVelocity) / maxAcceleration;
+        stopSlope = -Math.signum(peak) * maxAcceleration;
+        stopTime = Math.abs(peak) / maxAcceleration;
+    }
+
+    /**
+     * Gets the distance of a trapezoid through the given peak velocity with no
+     * cruise
+     */
+    private double withoutCruise(double peak) {
+        double ramp = (startVelocity + peak) / 2 * Math.abs(peak - startVelocity) / maxAcceleration;
+        double stop = peak / 2 * Math.abs(peak) / maxAcceleration;
+        return ramp + stop;
+    }
+
+    /**
+     * Gets the shortest distance of a trapezoid through the given peak velocity.
+     * One that speeds up and then slows down has to cruise for at least the jerk
+     * window, anything else needs no cruise
+     */
+    private double withCruise(double peak, double jerkTime) {
+        boolean speedsUp = peak != startVelocity && Math.signum(peak - startVelocity) == Math.signum(peak);
+        return withoutCruise(peak) + (speedsUp ? peak * jerkTime : 0);
+    }
+
+    private double trapPosition(double t) {
+        if (t <= 0) return startVelocity * t;
+        if (t < rampTime) return startVelocity * t + 0.5 * rampSlope * t * t;
+        double rampDistance = (startVelocity + peakVelocity) / 2 * rampTime;
+        if (t < rampTime + cruiseTime) return rampDistance + peakVelocity * (t - rampTime);
+        double cruiseEnd = rampDistance + peakVelocity * cruiseTime;
+        double s = Math.min(t, trapTime) - rampTime - cruiseTime;
+        return cruiseEnd + peakVelocity * s + 0.5 * stopSlope * s * s;
+    }
+
+    private double trapVelocity(double t) {
+        if (t <= 0) return startVelocity;
+        if (t >= trapTime) return 0;
+        if (t < rampTime) return startVelocity + rampSlope * t;
+        if (t < rampTime + cruiseTime) return peakVelocity;
+        return peakVelocity + stopSlope * (t - rampTime - cruiseTime);
+    }
+
+    private double trapAcceleration(double t) {
+        if (t <= 0 || t >= trapTime) return 0;
+        if (t < rampTime) return rampSlope;
+        if (t < rampTime + cruiseTime) return 0;
+        return stopSlope;
+    }
+}
@@ -3,6 +3,7 @@ package frc.robot.motors;
 import com.ctre.phoenix.motorcontrol.ControlMode;
 import com.ctre.phoenix.motorcontrol.NeutralMode;
 import com.ctre.phoenix.motorcontrol.StatorCurrentLimitConfiguration;
+import com.ctre.phoenix.motorcontrol.StatusFrameEnhanced;
 import com.ctre.phoenix.motorcontrol.can.TalonFX;
 import com.ctre.phoenix.motorcontrol.can.TalonSRX;
 
@@ -11,55 +12,231 @@ import com.playingwithfusion.CANVenom.BrakeCoastMode;
 import com.revrobotics.CANSparkMax;
 import com.revrobotics.CANSparkMax.IdleMode;
 import com.revrobotics.CANSparkMaxLowLevel.MotorType;
+import com.revrobotics.CANSparkMaxLowLevel.PeriodicFrame;
 
 import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.RobotState;
+import edu.wpi.first.wpilibj.controller.SimpleMotorFeedforward;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.Command;
 import frc.robot.commands.BuilderCommand;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 
 public class Motor {
     // setup background thread for PID control
     private static int periodMs = 2;
-    private static LinkedList<Motor> allMotors = new LinkedList<Motor>();
 
+    // how often controllers send sensor feedback unless told otherwise
+    private static final int defaultFeedbackFrameMs = 10;
+
+    // smallest change of an onboard loop's peak output worth a config frame
+    private static final double peakOutputStep = 0.01;
+
+    // the timing wheel ticks at this rate, each motor runs every few ticks
+    private static final int baseRateHz = 1000;
+    private static final long baseTickNanos = 1_000_000_000L / baseRateHz;
+
+    // motors in registration order, only touched while holding registryLock
+    private static final ArrayList<Motor> registeredMotors = new ArrayList<Motor>();
+    private static final Object registryLock = new Object();
+
+    // immutable snapshot in update order, replaced whenever the registry changes
+    private static volatile Motor[] allMotors = new Motor[0];
+    private static volatile TimingWheel timingWheel = new TimingWheel(new Motor[0], new int[0],
+            periodMs * baseRateHz / 1000);
+
+    // loop timing statistics, written by the motor thread only
+    private static volatile long loopOverruns;
+    private static volatile long skippedCycles;
+    private static volatile double lastLoopPeriodMs = periodMs;
+    private static final LatencyHistogram loopJitter = new LatencyHistogram();
+
+    // telemetry is published to the dashboard at this period
+    private static final long telemetryPeriodNanos = 500_000_000L;
+    private static long lastTelemetryNanos;
+    private static boolean telemetryStarted;
+    private static final String resetStatsKey = "motors/resetStats";
+    private static final String[] statNames = { "p50", "p99", "max" };
+    private static final String[] loopKeys = { "motors/loop/jitter/p50", "motors/loop/jitter/p99",
+            "motors/loop/jitter/max", "motors/loop/periodMs", "motors/loop/overruns", "motors/loop/skipped" };
+
+    // battery voltage for feedforward, sampled once per cycle while any motor uses one
+    private static DoubleSupplier batteryVoltageSource = RobotController::getBatteryVoltage;
+    private static volatile boolean feedforwardInUse;
+
+    // shares current between motors by priority, null when there is no budget
+    private static volatile CurrentBudget currentBudget;
+    private static volatile Motor[] budgetOrder = new Motor[0];
+    private static final String[] budgetKeys = { "motors/power/availableAmps", "motors/power/drawnAmps" };
+    private static double cycleBatteryVoltage = 12;
+
+    // latency phases measured for every motor
+    private static final int readPhase = 0;
+    private static final int computePhase = 1;
+    private static final int writePhase = 2;
+    private static final int totalPhase = 3;
+    private static final String[] phaseNames = { "read", "compute", "write", "total" };
+
+    // moment of inertia given to motors the hardware factories simulate, kg m^2
+    private static final double defaultSimulatedInertia = 0.002;
+
+    // an autotune that has not finished oscillating by now gives up
+    private static final double autotuneTimeoutMs = 20_000;
+
+    // simulated backend and step driven clock for running off the robot
+    private static volatile boolean simulation;
+    private static volatile boolean steppedClock;
+    private static final Object cycleLock = new Object();
+    private static long steppedTick;
+    private static long steppedNanos;
+
+    // how often overruns are reported to the driver station
+    private static final long overrunReportPeriodNanos = 5_000_000_000L;
+
+    /**
+     * Runs the timing wheel on an absolute timeline. Each tick has a fixed
+     * deadline, so time spent in CAN calls does not push later ticks back. Only
+     * the motors due on a tick are updated, each at its own rate.
+     * <p>
+     * While the robot is disabled the loop idles on driver station packets
+     * instead, which wakes it on the packet that enables the robot. Every time
+     * the loop starts running motors again (enable, resume or start) their PID
+     * state is cleared so nothing built up before the pause carries over.
+     * </p>
+     */
     private static class MotorThread {
-        Thread thread;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean paused;
+
         public MotorThread() {
-            thread = new Thread(() -> {
-                while (true) {
-                    for (Motor m : allMotors) {
-                        m.update();
+            thread = new Thread(this::run, "MotorThread");
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            long tick = 0;
+            long nextDeadline = System.nanoTime();
+            long lastCycle = nextDeadline;
+            long lastReport = nextDeadline;
+            long reportedOverruns = 0;
+            long stepNanos = 0;
+            boolean idle = true;
+            boolean neutralSent = false;
+            while (running) {
+                if (paused || !robotEnabled.getAsBoolean()) {
+                    idle = true;
+                    if (paused) {
+                        if (!neutralSent) {
+                            // the controllers would otherwise hold the last output for the whole pause
+                            neutralAll();
+                            neutralSent = true;
+                        }
+                        LockSupport.park(this);
+                    } else {
+                        DriverStation.getInstance().waitForData(idleWaitSeconds);
+                    }
+                    continue;
+                }
+                if (idle) {
+                    // start over on a fresh timeline with clean PID state
+                    restartAll(System.nanoTime());
+                    idle = false;
+                    neutralSent = false;
+                    tick = 0;
+                    nextDeadline = System.nanoTime();
+                }
+
+                TimingWheel wheel = timingWheel;
+
+                long now = System.nanoTime();
+                if (tick != 0) {
+                    lastLoopPeriodMs = (now - lastCycle) / 1e6;
+                    loopJitter.record(Math.abs(now - lastCycle - stepNanos));
+                }
+                lastCycle = now;
+
+                synchronized (cycleLock) {
+                    runCycle(wheel.slot(tick), now);
+                }
+
+                // sleep straight through slots that have no motors due
+                stepNanos = wheel.stepAfter(tick) * baseTickNanos;
+                tick += wheel.stepAfter(tick);
+                nextDeadline += stepNanos;
+                now = System.nanoTime();
+                if (now >= nextDeadline) {
+                    // we missed the deadline, run the next due slot right away but drop
+                    // any that passed completely so the loop does not burst to catch up
+                    loopOverruns++;
+                    long step;
+                    while (nextDeadline + (step = wheel.stepAfter(tick) * baseTickNanos) <= now) {
+                        skippedCycles++;
+                        nextDeadline += step;
+                        tick += step / baseTickNanos;
                     }
-                    try {
-                        Thread.sleep(periodMs);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                } else {
+                    while ((now = System.nanoTime()) < nextDeadline) {
+                        LockSupport.parkNanos(nextDeadline - now);
+                    }
+                }
+
+                if (now - lastReport >= overrunReportPeriodNanos) {
+                    if (loopOverruns != reportedOverruns) {
+                        DriverStation.reportWarning("Motor loop overran " + (loopOverruns - reportedOverruns)
+                                + " times, " + skippedCycles + " cycles skipped total", false);
+                        reportedOverruns = loopOverruns;
                     }
+                    lastReport = now;
                 }
-            });
-            thread.start();
+            }
+            neutralAll();
         }
     }
-    @SuppressWarnings({"unused"})
-    private static MotorThread motorUpdateThread = new MotorThread();
+    // null while the thread is stopped, only changed while holding threadLock
+    private static MotorThread motorUpdateThread;
+    private static final Object threadLock = new Object();
+
+    // the loop only runs motors while this is true
+    static BooleanSupplier robotEnabled = RobotState::isEnabled;
+
+    // where autotune results and failures are reported, tests replace them since
+    // the driver station needs the HAL
+    static Consumer<String> autotuneResult = message -> DriverStation.reportWarning(message, false);
+    static Consumer<String> autotuneFailure = message -> DriverStation.reportError(message, false);
+
+    // how long the disabled loop waits for a driver station packet
+    private static final double idleWaitSeconds = 0.1;
 
     // private objects to get/set motor data without using a specific motor
-    private Supplier<Double> getEncoderPos;
-    private Supplier<Double> getEncoderVel;
-    private Supplier<Double> getCurrent;
+    // primitive bindings so the control loop never boxes a value
+    private DoubleSupplier getEncoderPos;
+    private DoubleSupplier getEncoderVel;
+    private DoubleSupplier getCurrent;
 
-    private Consumer<Double> setSpeed;
+    private DoubleConsumer setSpeed;
     private Consumer<BrakeMode> setBrakeMode;
-    private Consumer<Integer> setCurrentLimit;
-    private Consumer<Double> setVoltageCompensation;
+    private IntConsumer setCurrentLimit;
+    private DoubleConsumer setVoltageCompensation;
     
     private Runnable resetEncoder;
 
-    private double[] rollingAvg;
-    private int rollingAvgIndex;
+    // physics model behind a simulated motor, null for real hardware
+    private SimulatedMotor simulatedMotor;
+
+    // filter pipelines per slot, null passes the value straight through
+    private final SignalFilter[] measurementFilter = new SignalFilter[4];
+    private final SignalFilter[] derivativeFilter = new SignalFilter[4];
 
     // used for PID calculation
     private double prevError;
@@ -68,13 +245,114 @@ public class Motor {
     private double prevAuxError;
     private double auxIntegral;
 
+    // the latest command, written by set() and read once per cycle by the motor thread
+    private volatile Setpoint command = Setpoint.initial;
+    private Setpoint appliedSetpoint = Setpoint.initial;
+    private int appliedResetCount;
+
+    // the motor thread's copy of the applied command
     private double setPoint;
     private double auxSetPoint;
 
     private double output;
 
-    private Supplier<Double> sensorSource;
-    private Supplier<Double> auxSensorSource;
+    // latency of each phase of this motor's update, indexed by phase
+    private final LatencyHistogram[] phaseLatency = { new LatencyHistogram(), new LatencyHistogram(),
+            new LatencyHistogram(), new LatencyHistogram() };
+    private long cycleNanos;
+    private int deviceId;
+    private String[] telemetryKeys;
+
+    // how many base ticks between updates of this motor
+    private int updateIntervalTicks = periodMs * baseRateHz / 1000;
+    private long lastComputeNanos;
+    private boolean hasComputed;
+
+    // latest samples, taken in the read phase of each cycle
+    private double measurement;
+    private double auxMeasurement;
+
+    // sample cache, a sample is new when the controller has sent a fresh status frame
+    private IntConsumer setFeedbackFramePeriod;
+    private long statusFrameNanos;
+    private double lastRawMeasurement;
+    long sampleNanos;
+    private long prevSampleNanos;
+    private boolean hasSample;
+    private boolean hasPrevSample;
+    boolean newSample;
+    private double lastDerivative;
+    // filtered sample in the group's mode, read by the group's loop
+    double groupMeasurement;
+    private double prevTarget;
+
+    // redundant write suppression
+    private double writeEpsilon = 1e-4;
+    private long keepAliveNanos = 20_000_000L;
+    private double lastWrittenOutput;
+    private double lastWrittenFeedforward;
+    private long lastWriteNanos;
+    private boolean hasWritten;
+
+    private DoubleSupplier sensorSource;
+    private DoubleSupplier auxSensorSource;
+
+    // physics feedforward per slot, in volts per (scaled) unit
+    private final boolean[] hasFeedforward = new boolean[4];
+    private final double[] ffS = new double[4];
+    private final double[] ffV = new double[4];
+    private final double[] ffA = new double[4];
+    private final double[] ffScale = new double[4];
+    private double voltageCompensation;
+
+    // velocity setpoint tracking to estimate the commanded acceleration
+    private double ffLastSetPoint;
+    private double ffSinceChangeMs;
+    private double ffHoldMs;
+    private double ffAccel;
+    private double onboardFeedforward;
+
+    // motion profile limits in position units per second
+    private double maxProfileVelocity;
+    private double maxProfileAcceleration;
+    private double maxProfileJerk;
+
+    // profiles are generated into a buffer that is neither running nor waiting to run
+    private MotionProfile[] profileBuffers;
+    private volatile MotionProfile runningProfile;
+    private volatile double profileElapsedMs;
+    private volatile Setpoint finishedSetpoint;
+
+    // closed loop on the motor controller, null when the controller has none
+    private OnboardClosedLoop onboardClosedLoop;
+    private boolean useOnboardPID;
+    // the motor is inverted by the controller rather than by negating the output
+    private volatile boolean invertedInController;
+    private boolean onboardThisCycle;
+    private boolean onboardActive;
+    private SetMode lastOnboardMode;
+    private double onboardPeakOutput = 1;
+
+    // current budget, the scale is written by the budget in the motor thread
+    private int powerPriority;
+    int budgetPriority;
+    double measuredCurrent;
+    volatile double budgetScale = 1;
+
+    // slew and jerk limiting of the output, null when the output is not shaped
+    private volatile OutputShaper outputShaper;
+
+    // the group that drives this motor, null when it runs on its own
+    volatile MotorGroup group;
+
+    // stall and thermal monitoring, null until health limits are set
+    private volatile MotorHealth health;
+    private HealthState reportedHealth = HealthState.Ok;
+    private String[] healthKeys;
+
+    // relay feedback experiment, replaces the PID output while it runs
+    private volatile RelayAutotuner autotuner;
+    private double tunerMeasurement;
 
     // motor characteristics
 
@@ -89,6 +367,8 @@ public class Motor {
     private double conversionFactor = 1;
 
     private Motor master;
+    // scale applied to the last output written, followers copy their master's
+    private double appliedScale = 1;
 
     private SetMode mode = SetMode.PercentOutput;
 
@@ -104,15 +384,50 @@ public class Motor {
 
     // PID mode
     public enum SetMode {
-        Position(0), Velocity(1), Sensor(2), PercentOutput(-1), Follow(-1);
+        Position(0), Velocity(1), Sensor(2), PercentOutput(-1), Follow(-1),
+        /**
+         * Streams a motion profile to the target using the Position slot. The
+         * Position kFF is applied to the profile velocity
+         */
+        MotionProfile(0);
 
-        private int slot;
+        final int slot;
 
         private SetMode(int slot) {
             this.slot = slot;
         }
     }
 
+    /**
+     * How autotune turns the ultimate gain (Ku) and period (Pu) into gains
+     */
+    public enum TuningRule {
+        /** Classic Ziegler-Nichols PID, fast with about 25% overshoot */
+        ZieglerNichols(0.6, 0.5, 0.125),
+        /** Ziegler-Nichols PI, for velocity loops that do not need a D term */
+        ZieglerNicholsPI(0.45, 0.83, 0),
+        /** Tyreus-Luyben PID, slower but with much less overshoot */
+        TyreusLuyben(0.45, 2.2, 0.159),
+        /** Ziegler-Nichols "no overshoot" PID */
+        NoOvershoot(0.2, 0.5, 0.333);
+
+        // kP = kpRatio * Ku, Ti = tiRatio * Pu, Td = tdRatio * Pu
+        private final double kpRatio, tiRatio, tdRatio;
+
+        private TuningRule(double kpRatio, double tiRatio, double tdRatio) {
+            this.kpRatio = kpRatio;
+            this.tiRatio = tiRatio;
+            this.tdRatio = tdRatio;
+        }
+    }
+
+    /**
+     * The worst fault the health monitor currently sees
+     */
+    public enum HealthState {
+        Ok, Derating, Stalled, Overheated
+    }
+
     private enum BrakeMode {
         Brake(true), Coast(false);
 
@@ -129,15 +444,244 @@ public class Motor {
         kD = new double[4];
         kFF = new double[4];
         kIzone = new double[4];
-        rollingAvg = new double[3];
+        // smooth the primary sensors a little by default, like the old 3 sample error average
+        measurementFilter[Slot.Position.slot] = SignalFilter.movingAverage(3);
+        measurementFilter[Slot.Velocity.slot] = SignalFilter.movingAverage(3);
+        measurementFilter[Slot.Sens.slot] = SignalFilter.movingAverage(3);
+    }
+
+    private void init(int deviceId) {
+        this.deviceId = deviceId;
+        synchronized (registryLock) {
+            registeredMotors.add(this);
+            rebuildRegistry();
+        }
+        if (!steppedClock) {
+            startThread();
+        }
+    }
+
+    /**
+     * Starts the motor thread if it is not running. Creating a motor does this,
+     * unless the clock is stepped
+     */
+    public static void startThread() {
+        synchronized (threadLock) {
+            if (motorUpdateThread == null) {
+                motorUpdateThread = new MotorThread();
+                motorUpdateThread.thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the motor thread and waits for it to finish its current cycle. Every
+     * motor is set to neutral before the thread exits
+     */
+    public static void stopThread() {
+        synchronized (threadLock) {
+            MotorThread t = motorUpdateThread;
+            if (t == null) return;
+            t.running = false;
+            LockSupport.unpark(t.thread);
+            try {
+                t.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            motorUpdateThread = null;
+        }
+    }
+
+    /**
+     * Pauses the motor thread without stopping it. The thread sets every motor
+     * to neutral, then nothing is read or written until resumeThread is called
+     */
+    public static void pauseThread() {
+        synchronized (threadLock) {
+            if (motorUpdateThread != null) {
+                motorUpdateThread.paused = true;
+            }
+        }
+    }
+
+    /**
+     * Resumes a paused motor thread with clean PID state
+     */
+    public static void resumeThread() {
+        synchronized (threadLock) {
+            if (motorUpdateThread != null) {
+                motorUpdateThread.paused = false;
+                LockSupport.unpark(motorUpdateThread.thread);
+            }
+        }
     }
 
-    private void init() {
-        allMotors.add(this);
+    /**
+     * Gets if the motor thread exists and is not paused. It may still be idling
+     * while the robot is disabled
+     */
+    public static boolean isThreadRunning() {
+        MotorThread t = motorUpdateThread;
+        return t != null && !t.paused;
+    }
+
+    /**
+     * Clears the loop state of every motor before the thread starts running them
+     * again, only called by the motor thread
+     */
+    private static void restartAll(long nowNanos) {
+        Motor[] motors = allMotors;
+        for (int i = 0; i < motors.length; i++) {
+            motors[i].restart(nowNanos);
+        }
+    }
+
+    /**
+     * Sets every motor, followers included, to neutral. Only called by the motor
+     * thread when it stops writing
+     */
+    private static void neutralAll() {
+        synchronized (cycleLock) {
+            Motor[] motors = allMotors;
+            for (int i = 0; i < motors.length; i++) {
+                motors[i].writeNeutral();
+            }
+        }
+    }
+
+    /**
+     * Stops the motor where it is. This also stops an onboard loop, which the
+     * controller would otherwise keep running on its own
+     */
+    private void writeNeutral() {
+        setSpeed.accept(0);
+        if (onboardClosedLoop != null) {
+            setOnboardPeakOutput(1);
+        }
+        onboardActive = false;
+        lastWrittenOutput = 0;
+        hasWritten = false;
+    }
+
+    /**
+     * Takes the motor out of its group between two cycles, so no cycle sees it
+     * half way. It is left at 0 percent output, its own command from before the
+     * group is long out of date
+     */
+    void leaveGroup() {
+        set(SetMode.PercentOutput, 0);
+        synchronized (cycleLock) {
+            group = null;
+        }
+    }
+
+    /**
+     * Forgets everything carried over from before a pause. The next cycle's
+     * time step is the nominal one, not the length of the pause, and the first
+     * output is always sent. The motor was not driven during the pause, so the
+     * health model cools for the time that really passed
+     */
+    private void restart(long nowNanos) {
+        MotorHealth h = health;
+        if (h != null && hasComputed) {
+            h.coolDown((nowNanos - lastComputeNanos) / 1e6);
+        }
+        Setpoint cmd = command;
+        if (cmd != appliedSetpoint) {
+            applySetpoint(cmd);
+        }
+        clearPID();
+        hasComputed = false;
+        hasWritten = false;
+        OutputShaper shaper = outputShaper;
+        if (shaper != null) {
+            shaper.reset();
+        }
+        MotorGroup g = group;
+        if (g != null) {
+            g.restart();
+        }
+    }
+
+    /**
+     * Publishes a new snapshot of all motors, ordered so every motor is updated
+     * after the motor it follows. Must be called while holding registryLock
+     */
+    private static void rebuildRegistry() {
+        int count = registeredMotors.size();
+        Motor[] sorted = new Motor[count];
+        int[] depth = new int[count];
+        int maxDepth = 0;
+        for (int i = 0; i < count; i++) {
+            depth[i] = followDepth(registeredMotors.get(i));
+            maxDepth = Math.max(maxDepth, depth[i]);
+        }
+        // stable bucket sort by depth keeps registration order within each level
+        int index = 0;
+        for (int d = 0; d <= maxDepth; d++) {
+            for (int i = 0; i < count; i++) {
+                if (depth[i] == d) {
+                    sorted[index++] = registeredMotors.get(i);
+                }
+            }
+        }
+        allMotors = sorted;
+
+        int[] intervals = new int[count];
+        for (int i = 0; i < count; i++) {
+            intervals[i] = effectiveInterval(sorted[i]);
+        }
+        timingWheel = new TimingWheel(sorted, intervals, periodMs * baseRateHz / 1000);
+
+        // followers share their master's priority so both sides of a mechanism scale together
+        Motor[] byPriority = new Motor[count];
+        for (int i = 0; i < count; i++) {
+            Motor root = sorted[i];
+            while (root.command.mode == SetMode.Follow && root.command.master != null) {
+                root = root.command.master;
+            }
+            Motor m = sorted[i];
+            m.budgetPriority = root.powerPriority;
+            // stable insertion sort, highest priority first
+            int j = i;
+            while (j > 0 && byPriority[j - 1].budgetPriority < m.budgetPriority) {
+                byPriority[j] = byPriority[j - 1];
+                j--;
+            }
+            byPriority[j] = m;
+        }
+        budgetOrder = byPriority;
+    }
+
+    /**
+     * Gets the update interval of a motor in base ticks. Followers run at the
+     * rate of the motor at the top of their follow chain
+     */
+    private static int effectiveInterval(Motor motor) {
+        Motor m = motor;
+        while (m.command.mode == SetMode.Follow && m.command.master != null) {
+            m = m.command.master;
+        }
+        return m.updateIntervalTicks;
+    }
+
+    /**
+     * Gets how many masters are above this motor in its follow chain
+     */
+    private static int followDepth(Motor motor) {
+        int depth = 0;
+        for (Motor m = motor; m.command.mode == SetMode.Follow && m.command.master != null; m = m.command.master) {
+            depth++;
+        }
+        return depth;
     }
 
     // static 'constructors'
     public static Motor createTalonSRX(int port) {
+        if (simulation) {
+            return createSimulated(port, SimulatedMotor.cim(1, defaultSimulatedInertia));
+        }
         TalonSRX talon = new TalonSRX(port);
         talon.configFactoryDefault();
         Motor ret = new Motor();
@@ -146,6 +690,8 @@ public class Motor {
         ret.setSpeed = p -> talon.set(ControlMode.PercentOutput, p);
         ret.setBrakeMode = brakeMode -> talon.setNeutralMode(brakeMode.value ? NeutralMode.Brake : NeutralMode.Coast);
         ret.getCurrent = () -> talon.getStatorCurrent();
+        ret.onboardClosedLoop = OnboardClosedLoop.forTalon(talon, () -> ret.conversionFactor);
+        ret.setFeedbackFramePeriod = ms -> talon.setStatusFramePeriod(StatusFrameEnhanced.Status_2_Feedback0, ms);
         ret.setCurrentLimit = limit -> {
             talon.configContinuousCurrentLimit(limit);
             talon.enableCurrentLimit(true);
@@ -154,11 +700,15 @@ public class Motor {
             talon.configVoltageCompSaturation(voltage);
             talon.enableVoltageCompensation(true);
         };
-        ret.init();
+        ret.setFeedbackFramePeriod(defaultFeedbackFrameMs);
+        ret.init(port);
         return ret;
     }
 
     public static Motor createFalcon500(int port) {
+        if (simulation) {
+            return createSimulated(port, SimulatedMotor.falcon500(1, defaultSimulatedInertia));
+        }
         TalonFX talon = new TalonFX(port);
         talon.configFactoryDefault();
         Motor ret = new Motor();
@@ -168,6 +718,8 @@ public class Motor {
         ret.setBrakeMode = brakeMode -> talon.setNeutralMode(brakeMode.value ? NeutralMode.Brake : NeutralMode.Coast);
         ret.getCurrent = () -> talon.getStatorCurrent();
         ret.resetEncoder = () -> talon.setSelectedSensorPosition(0);
+        ret.onboardClosedLoop = OnboardClosedLoop.forTalon(talon, () -> ret.conversionFactor);
+        ret.setFeedbackFramePeriod = ms -> talon.setStatusFramePeriod(StatusFrameEnhanced.Status_2_Feedback0, ms);
         ret.setCurrentLimit = limit -> {
             talon.configStatorCurrentLimit(new StatorCurrentLimitConfiguration(true, limit, 0, 1));
         };
@@ -175,11 +727,15 @@ public class Motor {
             talon.configVoltageCompSaturation(voltage);
             talon.enableVoltageCompensation(true);
         };
-        ret.init();
+        ret.setFeedbackFramePeriod(defaultFeedbackFrameMs);
+        ret.init(port);
         return ret;
     }
 
     public static Motor createVenom(int port) {
+        if (simulation) {
+            return createSimulated(port, SimulatedMotor.venom(1, defaultSimulatedInertia));
+        }
         @SuppressWarnings({"resource"})
         CANVenom venom = new CANVenom(port);
         Motor ret = new Motor();
@@ -192,11 +748,14 @@ public class Motor {
         ret.setCurrentLimit = limit -> DriverStation.reportError("Venom motors do not support current limiting", true);
         ret.setVoltageCompensation = voltage -> DriverStation
                 .reportError("Venom motors do not support voltage compensation", true);
-        ret.init();
+        ret.init(port);
         return ret;
     }
 
     public static Motor createNeo(int port) {
+        if (simulation) {
+            return createSimulated(port, SimulatedMotor.neo(1, defaultSimulatedInertia));
+        }
         @SuppressWarnings({"resource"})
         CANSparkMax neo = new CANSparkMax(port, MotorType.kBrushless);
         neo.restoreFactoryDefaults();
@@ -206,9 +765,121 @@ public class Motor {
         ret.setSpeed = p -> neo.set(p);
         ret.setBrakeMode = brakeMode -> neo.setIdleMode(brakeMode.value ? IdleMode.kBrake : IdleMode.kCoast);
         ret.getCurrent = () -> neo.getOutputCurrent();
+        ret.onboardClosedLoop = OnboardClosedLoop.forSparkMax(neo);
+        ret.setFeedbackFramePeriod = ms -> {
+            // status 1 carries velocity, status 2 position
+            neo.setPeriodicFramePeriod(PeriodicFrame.kStatus1, ms);
+            neo.setPeriodicFramePeriod(PeriodicFrame.kStatus2, ms);
+        };
+        ret.setFeedbackFramePeriod(defaultFeedbackFrameMs);
         ret.setCurrentLimit = limit -> neo.setSmartCurrentLimit(limit);
         ret.setVoltageCompensation = voltage -> neo.enableVoltageCompensation(voltage);
-        ret.init();
+        ret.init(port);
+        return ret;
+    }
+
+    /**
+     * Creates a motor backed by a physics model instead of a motor controller.
+     * Position is in rotations and velocity in RPM, times the conversion factor
+     */
+    public static Motor createSimulated(int port, SimulatedMotor sim) {
+        Motor ret = new Motor();
+        ret.simulatedMotor = sim;
+        ret.getEncoderPos = () -> ret.conversionFactor * sim.getReportedPosition();
+        ret.getEncoderVel = () -> ret.conversionFactor * sim.getReportedVelocity();
+        ret.setSpeed = p -> sim.setOutput(p);
+        ret.setBrakeMode = brakeMode -> sim.setBrake(brakeMode.value);
+        ret.getCurrent = () -> sim.getCurrent();
+        ret.resetEncoder = () -> sim.reset(0);
+        ret.setFeedbackFramePeriod = ms -> sim.setFeedbackFramePeriod(ms);
+        ret.setCurrentLimit = limit -> sim.setCurrentLimit(limit);
+        ret.setVoltageCompensation = voltage -> sim.setVoltageCompensation(voltage);
+        ret.setFeedbackFramePeriod(defaultFeedbackFrameMs);
+        ret.init(port);
+        return ret;
+    }
+
+    /**
+     * Makes the hardware factories create simulated motors (a bare motor with a
+     * small flywheel) and feeds feedforward from the simulated bus voltage. Must
+     * be called before any motors are created
+     */
+    public static void setSimulation(boolean enabled) {
+        simulation = enabled;
+        batteryVoltageSource = enabled ? SimulatedMotor::getBusVoltage : RobotController::getBatteryVoltage;
+    }
+
+    /**
+     * Stops the motor thread from running cycles on its own. Time then only
+     * moves when stepClock is called, so tests can run the control loop and the
+     * physics faster than real time
+     */
+    public static void setSteppedClock(boolean stepped) {
+        if (stepped) {
+            stopThread();
+        }
+        synchronized (cycleLock) {
+            steppedClock = stepped;
+        }
+        if (!stepped) {
+            startThread();
+        }
+    }
+
+    /**
+     * Advances the stepped clock by a number of 1 ms ticks. Every simulated motor
+     * is stepped each tick and each motor's control loop runs when it is due,
+     * exactly like the motor thread would
+     */
+    public static void stepClock(int ticks) {
+        if (!steppedClock) {
+            DriverStation.reportError("setSteppedClock(true) must be called before stepClock", true);
+            return;
+        }
+        double dt = baseTickNanos / 1e9;
+        synchronized (cycleLock) {
+            for (int i = 0; i < ticks; i++) {
+                TimingWheel wheel = timingWheel;
+                Motor[] motors = allMotors;
+                for (int m = 0; m < motors.length; m++) {
+                    if (motors[m].simulatedMotor != null) {
+                        motors[m].simulatedMotor.step(dt);
+                    }
+                }
+                if (steppedTick % wheel.tickInterval == 0) {
+                    runCycle(wheel.slot(steppedTick), steppedNanos);
+                }
+                steppedTick++;
+                steppedNanos += baseTickNanos;
+            }
+        }
+    }
+
+    /**
+     * Gets the time of the stepped clock in seconds
+     */
+    public static double getSteppedTime() {
+        return steppedNanos / 1e9;
+    }
+
+    /**
+     * Gets the physics model behind this motor, or null when it drives hardware
+     */
+    public SimulatedMotor getSimulatedMotor() {
+        return simulatedMotor;
+    }
+
+    /**
+     * Creates a motor on top of the given bindings without registering it with the
+     * motor thread. Used to drive the control loop off the robot, the caller is
+     * responsible for running its cycles
+     */
+    static Motor createDetached(DoubleSupplier encoderPos, DoubleSupplier encoderVel, DoubleConsumer speed) {
+        Motor ret = new Motor();
+        ret.getEncoderPos = encoderPos;
+        ret.getEncoderVel = encoderVel;
+        ret.setSpeed = speed;
+        ret.getCurrent = () -> 0;
         return ret;
     }
 
@@ -221,6 +892,114 @@ public class Motor {
         this.kD[slot.slot] = kD;
         this.kFF[slot.slot] = kFF;
         this.kIzone[slot.slot] = kIzone;
+        if (slot == Slot.Position || slot == Slot.Velocity) {
+            pushOnboardGains(slot.slot);
+        }
+    }
+
+    /**
+     * Adds a characterized feedforward (kS, kV, kA in volts) to a slot. It is
+     * evaluated on the commanded velocity and acceleration, from the motion
+     * profile or from changes in the Velocity setpoint, and scaled by the
+     * measured battery voltage (or the voltage compensation, when set). It is
+     * added on top of the slot's kFF
+     * 
+     * @param unitScale converts this motor's velocity units into the units the
+     *                  feedforward was characterized in
+     */
+    public void setFeedforward(Slot slot, SimpleMotorFeedforward feedforward, double unitScale) {
+        ffS[slot.slot] = feedforward.ks;
+        ffV[slot.slot] = feedforward.kv;
+        ffA[slot.slot] = feedforward.ka;
+        ffScale[slot.slot] = unitScale;
+        hasFeedforward[slot.slot] = true;
+        feedforwardInUse = true;
+    }
+
+    /**
+     * Adds a characterized feedforward to a slot, with this motor's velocity
+     * already in the feedforward's units
+     */
+    public void setFeedforward(Slot slot, SimpleMotorFeedforward feedforward) {
+        setFeedforward(slot, feedforward, 1);
+    }
+
+    /**
+     * Gets the feedforward for a slot as a fraction of the output
+     */
+    double physicsFeedforward(int slot, double velocity, double acceleration) {
+        if (!hasFeedforward[slot]) return 0;
+        double v = velocity * ffScale[slot];
+        double a = acceleration * ffScale[slot];
+        double volts = ffS[slot] * Math.signum(v) + ffV[slot] * v + ffA[slot] * a;
+        double supply = voltageCompensation > 0 ? voltageCompensation : cycleBatteryVoltage;
+        return supply > 0 ? volts / supply : 0;
+    }
+
+    /**
+     * Estimates the commanded acceleration from changes in the setpoint. A change
+     * is spread over the time since the previous one, so setpoints from a 50 Hz
+     * periodic() do not look like one huge step per cycle
+     */
+    private void trackSetpointAcceleration(double dtMs) {
+        ffSinceChangeMs += dtMs;
+        if (setPoint != ffLastSetPoint) {
+            ffAccel = (setPoint - ffLastSetPoint) / (ffSinceChangeMs / 1000);
+            ffLastSetPoint = setPoint;
+            ffHoldMs = ffSinceChangeMs;
+            ffSinceChangeMs = 0;
+        } else if (ffSinceChangeMs > ffHoldMs) {
+            ffAccel = 0;
+        }
+    }
+
+    /**
+     * Runs Position and Velocity control on the motor controller instead of the
+     * roboRIO. Gains set with setPIDF are pushed into the controller's matching
+     * slot. Sensor mode, the auxiliary loop, inverted encoders and Venoms keep
+     * using the Java loop. While it is on, an inverted motor is inverted in the
+     * controller, which on a Talon FX also inverts the integrated sensor
+     */
+    public void setOnboardPID(boolean enabled) {
+        if (enabled && onboardClosedLoop == null) {
+            DriverStation.reportWarning("This motor has no onboard closed loop, using the roboRIO PID", false);
+        }
+        useOnboardPID = enabled;
+        updateControllerInversion();
+        pushOnboardGains(Slot.Position.slot);
+        pushOnboardGains(Slot.Velocity.slot);
+    }
+
+    /**
+     * Moves the inversion into the controller while onboard PID is on, and back
+     * to negating the output when it is off. Done between cycles so no output is
+     * written inverted twice or not at all
+     */
+    private void updateControllerInversion() {
+        if (onboardClosedLoop == null) return;
+        boolean invert = useOnboardPID && isMotorInverted;
+        synchronized (cycleLock) {
+            if (invert != invertedInController) {
+                onboardClosedLoop.setInverted(invert);
+                invertedInController = invert;
+            }
+        }
+    }
+
+    /**
+     * Sends a slot's gains to the motor controller when onboard PID is in use
+     */
+    private void pushOnboardGains(int slot) {
+        if (!useOnboardPID || onboardClosedLoop == null || conversionFactor <= 0) return;
+        onboardClosedLoop.setGains(slot, kP[slot], kI[slot], kD[slot], kFF[slot], kIzone[slot]);
+    }
+
+    /**
+     * Checks if the current mode can run on the motor controller
+     */
+    private boolean canRunOnboard() {
+        return useOnboardPID && onboardClosedLoop != null && (mode == SetMode.Position || mode == SetMode.Velocity)
+                && !useAux && conversionFactor > 0 && autotuner == null && outputShaper == null;
     }
 
     /**
@@ -245,6 +1024,9 @@ public class Motor {
      */
     public void setConversionFactor(double conversionFactor) {
         this.conversionFactor = conversionFactor;
+        // onboard gains are stored in native units
+        pushOnboardGains(Slot.Position.slot);
+        pushOnboardGains(Slot.Velocity.slot);
     }
 
     /**
@@ -255,14 +1037,86 @@ public class Motor {
      * @param currentPoint
      */
 
-    public void setSensorSource(Supplier<Double> value) {
+    public void setSensorSource(DoubleSupplier value) {
         this.sensorSource = value;
     }
 
-    public void setAuxiliarySource(Supplier<Double> value) {
+    public void setSensorSource(Supplier<Double> value) {
+        this.sensorSource = () -> value.get();
+    }
+
+    public void setAuxiliarySource(DoubleSupplier value) {
         this.auxSensorSource = value;
     }
 
+    public void setAuxiliarySource(Supplier<Double> value) {
+        this.auxSensorSource = () -> value.get();
+    }
+
+    /**
+     * Sets how often this motor's control loop runs. The rate is rounded to the
+     * nearest one the motor thread supports (1000 Hz divided by a factor of 1000).
+     * Followers always run at their master's rate, and both sides of a MotorGroup
+     * always run together, so setting either side sets both
+     * <p>
+     * Ex: setUpdateRate(1000) for a flywheel, setUpdateRate(100) for a roller
+     * </p>
+     */
+    public void setUpdateRate(double hz) {
+        synchronized (registryLock) {
+            updateIntervalTicks = TimingWheel.intervalForRate(hz, baseRateHz);
+            MotorGroup g = group;
+            if (g != null) {
+                g.otherSide(this).updateIntervalTicks = updateIntervalTicks;
+            }
+            rebuildRegistry();
+        }
+    }
+
+    /**
+     * Gets how often this motor's control loop runs in Hz
+     */
+    public double getUpdateRate() {
+        return (double) baseRateHz / updateIntervalTicks;
+    }
+
+    /**
+     * Sets how much the output has to change before it is sent to the motor
+     * controller again. Unchanged outputs are still resent every keep-alive period
+     */
+    public void setWriteEpsilon(double epsilon) {
+        this.writeEpsilon = epsilon;
+    }
+
+    /**
+     * Sets how often an unchanged output is resent to the motor controller
+     */
+    public void setKeepAlivePeriod(double periodMs) {
+        this.keepAliveNanos = (long) (periodMs * 1e6);
+    }
+
+    /**
+     * Sets how often the motor controller sends its sensor position and velocity.
+     * Reads in between return the same sample, which the PID does not count as new
+     * data. Note: this function is not available for Venoms
+     */
+    public void setFeedbackFramePeriod(int periodMs) {
+        if (setFeedbackFramePeriod == null) {
+            DriverStation.reportError("This motor does not support setting its status frame period", true);
+            return;
+        }
+        setFeedbackFramePeriod.accept(periodMs);
+        statusFrameNanos = periodMs * 1_000_000L;
+    }
+
+    /**
+     * Gets how long ago the last new sensor sample arrived in milliseconds
+     */
+    public double getSampleAgeMs() {
+        long now = steppedClock ? steppedNanos : System.nanoTime();
+        return hasSample ? (now - sampleNanos) / 1e6 : Double.POSITIVE_INFINITY;
+    }
+
     /**
      * Gets the closed loop error
      */
@@ -274,7 +1128,7 @@ public class Motor {
      * Gets the output current
      */
     public double getCurrent() {
-        return getCurrent.get();
+        return getCurrent.getAsDouble();
     }
 
     /**
@@ -288,44 +1142,198 @@ public class Motor {
      * Sets voltage compensation. Note: this function is not available for Venoms
      */
     public void setVoltageCompensation(double voltage) {
+        this.voltageCompensation = voltage;
         this.setVoltageCompensation.accept(voltage);
     }
 
+    /**
+     * Limits the total current of all motors. Every cycle the measured currents
+     * are added up and the budget is handed out by power priority; motors that
+     * do not fit are scaled down (to as little as 10%). While the battery is
+     * under the sag voltage the budget shrinks until it recovers. Pass 0 amps to
+     * remove the budget
+     * <p>
+     * Ex: Motor.setCurrentBudget(300, 9)
+     * </p>
+     */
+    public static void setCurrentBudget(double totalAmps, double sagVoltage) {
+        CurrentBudget budget = totalAmps > 0 ? new CurrentBudget(totalAmps, sagVoltage) : null;
+        // between cycles, so a cycle still using the old budget cannot scale a motor after the reset
+        synchronized (cycleLock) {
+            currentBudget = budget;
+            if (budget == null) {
+                for (Motor m : allMotors) {
+                    m.budgetScale = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets this motor's share of the current budget. Higher priorities get their
+     * current first, motors with the same priority are scaled together and
+     * followers always use their master's priority. The default is 0
+     * <p>
+     * Ex: shooterMotor.setPowerPriority(10) while shooting
+     * </p>
+     */
+    public void setPowerPriority(int priority) {
+        if (priority == powerPriority) return;
+        synchronized (registryLock) {
+            powerPriority = priority;
+            rebuildRegistry();
+        }
+    }
+
+    /**
+     * Clamps the output between min and max, in the motor loop. Followers copy
+     * the clamped output
+     */
+    public void setOutputLimits(double minOutput, double maxOutput) {
+        getOutputShaper().setLimits(minOutput, maxOutput);
+    }
+
+    /**
+     * Limits how fast the output can change, in output per second, 0 for no
+     * limit. Accel applies while the output grows away from zero and decel while
+     * it shrinks toward zero, so a full reversal slows down first and then speeds
+     * up. The limits run in the motor loop at its full rate; Position and
+     * Velocity loops stay on the roboRIO while the output is shaped
+     * <p>
+     * Ex: setRampRates(4, 8) takes 0.25 s to reach full output and 0.125 s to stop
+     * </p>
+     */
+    public void setRampRates(double accelPerSecond, double decelPerSecond) {
+        getOutputShaper().setRampRates(accelPerSecond, decelPerSecond);
+    }
+
+    /**
+     * Limits how fast the ramp rate itself can change, in output per second
+     * squared, 0 for no limit. This rounds off the corners of every ramp
+     */
+    public void setJerkLimit(double perSecondSquared) {
+        getOutputShaper().setJerkLimit(perSecondSquared);
+    }
+
+    private OutputShaper getOutputShaper() {
+        if (outputShaper == null) {
+            outputShaper = new OutputShaper();
+        }
+        return outputShaper;
+    }
+
+    /**
+     * Starts monitoring this motor for stalls and overheating. Once the estimated
+     * heating passes 80% of what the continuous current would cause, the output
+     * is scaled down (to as little as 25%) until the motor cools off. Onboard
+     * Position and Velocity loops stay on the controller with their peak output
+     * lowered to the scale
+     * <p>
+     * Ex: setHealthLimits(40, 30, 30, 50, 0.5) for a roller on a 40 A breaker
+     * </p>
+     * 
+     * @param continuousCurrent      the current the motor can carry indefinitely
+     *                               in amps
+     * @param thermalTimeConstantSec how quickly the motor heats up and cools off
+     * @param stallCurrent           current above this while barely moving is a
+     *                               stall, in amps
+     * @param stallVelocity          velocity below this is not moving, in this
+     *                               motor's units
+     * @param stallTimeSec           how long it has to last to count as a stall
+     */
+    public void setHealthLimits(double continuousCurrent, double thermalTimeConstantSec, double stallCurrent,
+            double stallVelocity, double stallTimeSec) {
+        health = new MotorHealth(continuousCurrent, thermalTimeConstantSec, stallCurrent, stallVelocity,
+                stallTimeSec);
+    }
+
+    /**
+     * Gets the worst fault the health monitor sees, always Ok without health
+     * limits
+     */
+    public HealthState getHealthState() {
+        MotorHealth h = health;
+        if (h == null) return HealthState.Ok;
+        if (h.getThermalLoad() >= 1) return HealthState.Overheated;
+        if (h.isStalled()) return HealthState.Stalled;
+        if (h.getOutputScale() < 1) return HealthState.Derating;
+        return HealthState.Ok;
+    }
+
+    /**
+     * Gets the estimated heating as a fraction of the continuous current rating
+     */
+    public double getThermalLoad() {
+        MotorHealth h = health;
+        return h == null ? 0 : h.getThermalLoad();
+    }
+
+    /**
+     * Gets how much the output is being scaled down by derating and the current
+     * budget, 1 is full output
+     */
+    public double getOutputScale() {
+        MotorHealth h = health;
+        return h == null ? budgetScale : h.getOutputScale() * budgetScale;
+    }
+
     /**
      * Inverts the encoder
      */
     public void invertEncoder() {
         isEncoderInverted = !isEncoderInverted;
         conversionFactor = -conversionFactor;
+        pushOnboardGains(Slot.Position.slot);
+        pushOnboardGains(Slot.Velocity.slot);
     }
 
     /**
-     * Inverts the motor output (Does not affect any follower output)
+     * Inverts the motor output (Does not affect any follower output). With
+     * onboard PID on the motor is inverted in the controller, which on a Talon FX
+     * also inverts the integrated sensor
      */
     public void invertMotor() {
         isMotorInverted = !isMotorInverted;
+        updateControllerInversion();
     }
 
     public double getVelocity() {
-        return getEncoderVel.get();
+        return getEncoderVel.getAsDouble();
     }
 
     public double getPosition() {
-        return getEncoderPos.get();
+        return getEncoderPos.getAsDouble();
     }
 
     /**
      * This motor matches the output of its master. This is not affected when the
-     * master's output is inverted
+     * master's output is inverted. When either motor is derated or limited by
+     * the current budget the follower is scaled down as far as the more limited
+     * of the two
      */
     public void follow(Motor master) {
-        mode = SetMode.Follow;
-        this.master = master;
+        for (Motor m = master; m != null; m = m.command.mode == SetMode.Follow ? m.command.master : null) {
+            if (m == this) {
+                DriverStation.reportError("A motor cannot follow itself through a follow chain", true);
+                return;
+            }
+        }
+        synchronized (registryLock) {
+            command = new Setpoint(SetMode.Follow, 0, 0, false, master, null, command.resetCount);
 
-        // make sure the follower motor is updated after its master by putting it at the
-        // end of the list
-        allMotors.remove(this);
-        allMotors.addLast(this);
+            // make sure the follower motor is updated after its master
+            rebuildRegistry();
+        }
+    }
+
+    /**
+     * Rebuilds the update order after leaving Follow mode so it no longer
+     * depends on the old master
+     */
+    private void stopFollowing() {
+        synchronized (registryLock) {
+            rebuildRegistry();
+        }
     }
 
     /**
@@ -343,92 +1351,662 @@ public class Motor {
     }
 
     public void set(SetMode mode, double targetValue) {
-        if(this.mode != mode) {
-            resetAllPID();
-        }
-        this.useAux = false;
-        this.mode = mode;
-        this.setPoint = targetValue;
+        publish(mode, targetValue, 0, false);
     }
 
     public void set(SetMode mode, double targetValue, double auxTargetValue) {
-        if(this.mode != mode || !useAux) {
-            resetAllPID();
+        publish(mode, targetValue, auxTargetValue, true);
+    }
+
+    /**
+     * Hands a new command to the motor thread as a single snapshot. Calling set
+     * with the same values again publishes nothing. Meant to be called from one
+     * thread, normally the command scheduler
+     */
+    private void publish(SetMode mode, double targetValue, double auxTargetValue, boolean useAux) {
+        Setpoint prev = command;
+        int resetCount = prev.mode != mode || (useAux && !prev.useAux) ? prev.resetCount + 1 : prev.resetCount;
+        MotionProfile profile = null;
+        if (mode == SetMode.MotionProfile) {
+            profile = prev.mode != mode || prev.setPoint != targetValue ? startProfile(targetValue, prev) : prev.profile;
+        }
+        Motor master = mode == SetMode.Follow ? prev.master : null;
+        if (resetCount == prev.resetCount && mode == prev.mode && targetValue == prev.setPoint
+                && auxTargetValue == prev.auxSetPoint && useAux == prev.useAux && profile == prev.profile) {
+            return;
+        }
+        command = new Setpoint(mode, targetValue, auxTargetValue, useAux, master, profile, resetCount);
+        if(prev.mode == SetMode.Follow && mode != SetMode.Follow) {
+            stopFollowing();
         }
-        this.mode = mode;
-        this.setPoint = targetValue;
-        this.useAux = true;
-        this.auxSetPoint = auxTargetValue;
     }
 
+    /**
+     * Sets the limits used by SetMode.MotionProfile, in position units per second.
+     * A jerk limit of 0 gives a trapezoidal profile, anything else an S-curve
+     */
+    public void setMotionConstraints(double maxVelocity, double maxAcceleration, double maxJerk) {
+        this.maxProfileVelocity = maxVelocity;
+        this.maxProfileAcceleration = maxAcceleration;
+        this.maxProfileJerk = maxJerk;
+        if (profileBuffers == null) {
+            profileBuffers = new MotionProfile[] { new MotionProfile(), new MotionProfile(), new MotionProfile() };
+        }
+    }
+
+    /**
+     * Gets if the last motion profile has reached its target setpoint
+     */
+    public boolean isProfileFinished() {
+        Setpoint c = command;
+        return c.profile == null || finishedSetpoint == c;
+    }
+
+    /**
+     * Generates a profile to the target. A move that is still running carries on
+     * from where its profile is now, at the velocity it has, anything else starts
+     * from rest at the measured position. The buffer used is neither the one the
+     * motor thread is running nor the one it may be about to pick up, so it is
+     * never written while being read
+     * 
+     * @param prev the command this profile replaces
+     * @return the profile, or null if there are no motion constraints
+     */
+    private MotionProfile startProfile(double target, Setpoint prev) {
+        if (profileBuffers == null || maxProfileVelocity <= 0 || maxProfileAcceleration <= 0) {
+            DriverStation.reportError("setMotionConstraints must be called before using MotionProfile", false);
+            return null;
+        }
+        MotionProfile pending = prev.profile;
+        MotionProfile running = runningProfile;
+        MotionProfile next = profileBuffers[0];
+        for (MotionProfile buffer : profileBuffers) {
+            if (buffer != running && buffer != pending) {
+                next = buffer;
+                break;
+            }
+        }
+
+        double start = getPosition();
+        double startVelocity = 0;
+        if (pending != null && finishedSetpoint != prev) {
+            // a profile the motor thread has not picked up yet has not moved
+            double t = pending == running ? profileElapsedMs / 1000 : 0;
+            start = pending.positionAt(t);
+            startVelocity = pending.velocityAt(t);
+        }
+        next.generate(start, startVelocity, target, maxProfileVelocity, maxProfileAcceleration, maxProfileJerk,
+                updateIntervalTicks / (double) baseRateHz);
+        return next;
+    }
+
+    /**
+     * Sets the filter applied to the sensor value of a slot before the error is
+     * taken. Pass null to use the raw sensor value
+     */
+    public void setMeasurementFilter(Slot slot, SignalFilter filter) {
+        measurementFilter[slot.slot] = filter;
+    }
+
+    /**
+     * Sets the filter applied to the derivative of a slot's error. Pass null to
+     * use the raw derivative
+     */
+    public void setDerivativeFilter(Slot slot, SignalFilter filter) {
+        derivativeFilter[slot.slot] = filter;
+    }
+
+    /**
+     * Clears the integral, derivative and filter state. The motor thread does it
+     * at the start of its next cycle, so it never races an update
+     */
     public void resetAllPID() {
+        command = command.withReset();
+    }
+
+    /**
+     * Clears the PID state, only called by the motor thread
+     */
+    private void clearPID() {
+        for (int i = 0; i < 4; i++) {
+            if (measurementFilter[i] != null) measurementFilter[i].reset();
+            if (derivativeFilter[i] != null) derivativeFilter[i].reset();
+        }
         prevAuxError = 0;
         auxIntegral = 0;
         prevError = 0;
         integral = 0;
+        lastDerivative = 0;
+        prevTarget = 0;
+        hasSample = false;
+    }
+
+    /**
+     * Gets how many times the motor loop missed its deadline
+     */
+    public static long getLoopOverruns() {
+        return loopOverruns;
+    }
+
+    /**
+     * Gets how many whole loop periods were dropped because of overruns
+     */
+    public static long getSkippedCycles() {
+        return skippedCycles;
+    }
+
+    /**
+     * Gets the measured period of the last motor loop cycle in milliseconds
+     */
+    public static double getLastLoopPeriodMs() {
+        return lastLoopPeriodMs;
+    }
+
+    /**
+     * Publishes loop jitter and each motor's read, compute, write and total
+     * update latency (p50, p99 and max in microseconds) to the dashboard under
+     * motors/&lt;id&gt;/. Setting motors/resetStats to true clears all of them.
+     * <p>
+     * Safe to call every robot loop, it only publishes twice a second
+     * </p>
+     */
+    public static void publishTelemetry() {
+        long now = System.nanoTime();
+        if (now - lastTelemetryNanos < telemetryPeriodNanos) return;
+        lastTelemetryNanos = now;
+
+        Motor[] motors = allMotors;
+        if (!telemetryStarted) {
+            // put the toggle on the dashboard so there is something to press
+            SmartDashboard.putBoolean(resetStatsKey, false);
+            telemetryStarted = true;
+        }
+        if (SmartDashboard.getBoolean(resetStatsKey, false)) {
+            loopJitter.requestReset();
+            for (int i = 0; i < motors.length; i++) {
+                for (LatencyHistogram h : motors[i].phaseLatency) {
+                    h.requestReset();
+                }
+            }
+            SmartDashboard.putBoolean(resetStatsKey, false);
+        }
+
+        SmartDashboard.putNumber(loopKeys[0], loopJitter.percentile(0.5) / 1e3);
+        SmartDashboard.putNumber(loopKeys[1], loopJitter.percentile(0.99) / 1e3);
+        SmartDashboard.putNumber(loopKeys[2], loopJitter.getMax() / 1e3);
+        SmartDashboard.putNumber(loopKeys[3], lastLoopPeriodMs);
+        SmartDashboard.putNumber(loopKeys[4], loopOverruns);
+        SmartDashboard.putNumber(loopKeys[5], skippedCycles);
+
+        CurrentBudget budget = currentBudget;
+        if (budget != null) {
+            SmartDashboard.putNumber(budgetKeys[0], budget.getAvailable());
+            SmartDashboard.putNumber(budgetKeys[1], budget.getDrawn());
+        }
+
+        for (int i = 0; i < motors.length; i++) {
+            motors[i].publishLatency();
+            motors[i].publishHealth();
+        }
+    }
+
+    /**
+     * Publishes this motor's health under motors/&lt;id&gt;/health/ and warns the
+     * driver station when it gets worse
+     */
+    private void publishHealth() {
+        MotorHealth h = health;
+        if (h == null) return;
+        if (healthKeys == null) {
+            String prefix = "motors/" + deviceId + "/health/";
+            healthKeys = new String[] { prefix + "state", prefix + "thermalLoad", prefix + "outputScale",
+                    prefix + "current" };
+        }
+        HealthState state = getHealthState();
+        if (state.compareTo(reportedHealth) > 0 && state != HealthState.Derating) {
+            DriverStation.reportWarning("Motor " + deviceId + " is " + state, false);
+        }
+        reportedHealth = state;
+        SmartDashboard.putString(healthKeys[0], state.name());
+        SmartDashboard.putNumber(healthKeys[1], h.getThermalLoad());
+        SmartDashboard.putNumber(healthKeys[2], h.getOutputScale());
+        SmartDashboard.putNumber(healthKeys[3], h.current);
+    }
+
+    /**
+     * Publishes this motor's latency histograms
+     */
+    private void publishLatency() {
+        if (telemetryKeys == null) {
+            telemetryKeys = new String[phaseNames.length * statNames.length];
+            for (int p = 0; p < phaseNames.length; p++) {
+                for (int st = 0; st < statNames.length; st++) {
+                    telemetryKeys[p * statNames.length + st] = "motors/" + deviceId + "/" + phaseNames[p] + "/"
+                            + statNames[st];
+                }
+            }
+        }
+        for (int p = 0; p < phaseNames.length; p++) {
+            LatencyHistogram h = phaseLatency[p];
+            SmartDashboard.putNumber(telemetryKeys[p * statNames.length], h.percentile(0.5) / 1e3);
+            SmartDashboard.putNumber(telemetryKeys[p * statNames.length + 1], h.percentile(0.99) / 1e3);
+            SmartDashboard.putNumber(telemetryKeys[p * statNames.length + 2], h.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Runs one control cycle over the given motors. All sensors are read first so
+     * the samples are taken as close together as possible, then every output is
+     * computed, then all outputs are written
+     * 
+     * @param nowNanos the time of this cycle from System.nanoTime()
+     */
+    static void runCycle(Motor[] motors, long nowNanos) {
+        CurrentBudget budget = currentBudget;
+        if (feedforwardInUse || budget != null) {
+            cycleBatteryVoltage = batteryVoltageSource.getAsDouble();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < motors.length; i++) {
+            Motor m = motors[i];
+            m.readSensors(nowNanos);
+            long end = System.nanoTime();
+            m.cycleNanos = end - start;
+            m.phaseLatency[readPhase].record(end - start);
+            start = end;
+        }
+        if (budget != null) {
+            // motors not due this cycle take part with their last measured current
+            budget.allocate(budgetOrder, cycleBatteryVoltage, nowNanos);
+            start = System.nanoTime();
+        }
+        for (int i = 0; i < motors.length; i++) {
+            Motor m = motors[i];
+            double dtMs = m.hasComputed ? (nowNanos - m.lastComputeNanos) / 1e6
+                    : (double) m.updateIntervalTicks * 1000 / baseRateHz;
+            m.lastComputeNanos = nowNanos;
+            m.hasComputed = true;
+            MotorGroup group = m.group;
+            if (group != null) {
+                group.compute(nowNanos);
+            }
+            m.compute(dtMs);
+            OutputShaper shaper = m.outputShaper;
+            if (shaper != null) {
+                m.output = shaper.shape(m.output, dtMs);
+            }
+            MotorHealth health = m.health;
+            if (health != null) {
+                health.update(dtMs);
+            }
+            long end = System.nanoTime();
+            m.cycleNanos += end - start;
+            m.phaseLatency[computePhase].record(end - start);
+            start = end;
+        }
+        for (int i = 0; i < motors.length; i++) {
+            Motor m = motors[i];
+            m.writeOutput(nowNanos);
+            long end = System.nanoTime();
+            m.cycleNanos += end - start;
+            m.phaseLatency[writePhase].record(end - start);
+            m.phaseLatency[totalPhase].record(m.cycleNanos);
+            start = end;
+        }
+    }
+
+    /**
+     * Samples the sensors needed by the current mode
+     */
+    private void readSensors(long nowNanos) {
+        Setpoint cmd = command;
+        if (cmd != appliedSetpoint) {
+            applySetpoint(cmd);
+        }
+        MotorHealth h = health;
+        if (h != null || currentBudget != null) {
+            measuredCurrent = Math.abs(getCurrent.getAsDouble());
+        }
+        if (h != null) {
+            h.current = measuredCurrent;
+            h.velocity = getEncoderVel.getAsDouble();
+        }
+        MotorGroup g = group;
+        if (g != null) {
+            // the group reads the heading once for both sides, each side caches and
+            // filters its own sample the same way its own loop would
+            SetMode groupMode = g.read(nowNanos);
+            onboardThisCycle = false;
+            if (groupMode == SetMode.Position || groupMode == SetMode.Velocity) {
+                measurement = groupMode == SetMode.Position ? getEncoderPos.getAsDouble()
+                        : getEncoderVel.getAsDouble();
+                takeSample(statusFrameNanos, nowNanos);
+                if (newSample) {
+                    groupMeasurement = filter(measurementFilter[groupMode.slot], measurement);
+                }
+            }
+            return;
+        }
+        switch (mode) {
+        case Position:
+        case MotionProfile:
+            measurement = getEncoderPos.getAsDouble();
+            break;
+        case Velocity:
+            measurement = getEncoderVel.getAsDouble();
+            break;
+        case Sensor:
+            measurement = sensorSource.getAsDouble();
+            break;
+        default:
+            onboardThisCycle = false;
+            return;
+        }
+        takeSample(mode == SetMode.Sensor ? 0 : statusFrameNanos, nowNanos);
+        if (useAux) {
+            auxMeasurement = auxSensorSource.getAsDouble();
+        }
+        onboardThisCycle = canRunOnboard();
+        if (onboardThisCycle) {
+            // the controller reports it in the motor's own direction, which is what
+            // followers copy
+            output = onboardClosedLoop.getAppliedOutput();
+        }
+    }
+
+    /**
+     * Decides if the measurement just read is a new sample. The controller only
+     * refreshes its sensor every status frame, a repeated value inside that
+     * window is the same sample read again
+     */
+    private void takeSample(long framePeriodNanos, long nowNanos) {
+        newSample = !hasSample || measurement != lastRawMeasurement || nowNanos - sampleNanos >= framePeriodNanos;
+        if (newSample) {
+            hasPrevSample = hasSample;
+            prevSampleNanos = sampleNanos;
+            sampleNanos = nowNanos;
+            lastRawMeasurement = measurement;
+            hasSample = true;
+        }
+    }
+
+    /**
+     * Copies a newly published command into the motor thread's fields
+     */
+    private void applySetpoint(Setpoint cmd) {
+        if (cmd.resetCount != appliedResetCount) {
+            clearPID();
+            appliedResetCount = cmd.resetCount;
+        }
+        mode = cmd.mode;
+        setPoint = cmd.setPoint;
+        auxSetPoint = cmd.auxSetPoint;
+        useAux = cmd.useAux;
+        master = cmd.master;
+        appliedSetpoint = cmd;
     }
 
     /**
      * Does PID calculations, follows a master, or sets percentOutput
+     * 
+     * @param dtMs the measured time since the last update in milliseconds
      */
-    private void update() {
-        double error = 0;
+    private void compute(double dtMs) {
+        MotorGroup g = group;
+        if (g != null) {
+            output = g.outputFor(this);
+            return;
+        }
         switch (mode) {
         case Follow:
             output = master.output;
-            setSpeed.accept(isMotorInverted ? -output : output);
             return;
         case PercentOutput:
             output = setPoint;
-            setSpeed.accept(isMotorInverted ? -output : output);
             return;
-        case Position:
-            error = setPoint - getEncoderPos.get();
-            break;
-        case Velocity:
-            error = setPoint - getEncoderVel.get();
-            break;
-        case Sensor:
-            error = setPoint - sensorSource.get();
+        default:
             break;
         }
-        rollingAvg[rollingAvgIndex] = error;
-        rollingAvgIndex++;
-        if(rollingAvgIndex >= rollingAvg.length) rollingAvgIndex = 0;
-        error = 0;
-        for(double d : rollingAvg) {
-            error += d;
+        if (mode == SetMode.Velocity) {
+            trackSetpointAcceleration(dtMs);
+        }
+        RelayAutotuner tuner = autotuner;
+        if (tuner != null && tuner.slot == mode.slot && mode != SetMode.MotionProfile) {
+            // the relay sees the measurement through the same filter the PID will
+            if (newSample) {
+                tunerMeasurement = filter(measurementFilter[mode.slot], measurement);
+            }
+            output = tuner.update(tunerMeasurement, dtMs);
+            prevError = setPoint - tunerMeasurement;
+            return;
+        }
+        if (onboardThisCycle) {
+            prevError = setPoint - measurement;
+            onboardFeedforward = mode == SetMode.Velocity ? physicsFeedforward(mode.slot, setPoint, ffAccel) : 0;
+            return;
+        }
+        double target = setPoint;
+        double feedForward = setPoint * kFF[mode.slot];
+        if (mode == SetMode.Velocity) {
+            feedForward += physicsFeedforward(mode.slot, setPoint, ffAccel);
+        }
+        if (mode == SetMode.MotionProfile) {
+            MotionProfile profile = appliedSetpoint.profile;
+            if (profile != runningProfile) {
+                // reset the time first, whoever sees the new profile sees its time
+                profileElapsedMs = 0;
+                runningProfile = profile;
+            }
+            if (profile != null) {
+                if (profile.sample(profileElapsedMs / 1000)) {
+                    finishedSetpoint = appliedSetpoint;
+                }
+                profileElapsedMs += dtMs;
+                target = profile.pos;
+                feedForward = profile.vel * kFF[mode.slot]
+                        + physicsFeedforward(mode.slot, profile.vel, profile.acc);
+            }
         }
-        error /= rollingAvg.length;
-
-        if (Math.abs(integral) < kIzone[mode.slot])
-            integral += error * periodMs;
 
-        double derivative = (error - prevError) / periodMs;
+        double error;
+        double derivative;
+        if (newSample) {
+            // integrate and differentiate over the time between samples, not cycles
+            double sampleDtMs = hasPrevSample ? (sampleNanos - prevSampleNanos) / 1e6 : dtMs;
+            error = target - filter(measurementFilter[mode.slot], measurement);
+
+            if (Math.abs(integral) < kIzone[mode.slot])
+                integral += error * sampleDtMs;
+
+            derivative = filter(derivativeFilter[mode.slot], (error - prevError) / sampleDtMs);
+            lastDerivative = derivative;
+        } else {
+            // same sample as last cycle, only the setpoint can have moved
+            error = prevError + (target - prevTarget);
+            derivative = lastDerivative;
+        }
+        prevTarget = target;
         output = kP[mode.slot] * error + kI[mode.slot] * integral + kD[mode.slot] * derivative
-                + setPoint * kFF[mode.slot];
+                + feedForward;
 
         if (useAux) {
-            double auxError = auxSetPoint - auxSensorSource.get();
+            double auxError = auxSetPoint - filter(measurementFilter[3], auxMeasurement);
             if (Math.abs(auxIntegral) < kIzone[3])
-                auxIntegral += auxError * periodMs;
+                auxIntegral += auxError * dtMs;
 
-            double auxDerivative = (auxError - prevAuxError) / periodMs;
+            double auxDerivative = filter(derivativeFilter[3], (auxError - prevAuxError) / dtMs);
             output += kP[3] * auxError + kI[3] * auxIntegral + kD[3] * auxDerivative + auxSetPoint * kFF[3];
             prevAuxError = auxError;
         }
 
-        setSpeed.accept(isMotorInverted ? -output : output);
         prevError = error;
     }
 
+    private static double filter(SignalFilter filter, double value) {
+        return filter == null ? value : filter.calculate(value);
+    }
+
+    /**
+     * Sends the output to the motor controller, unless it is within the write
+     * epsilon of the last value sent and the keep-alive period has not passed
+     */
+    private void writeOutput(long nowNanos) {
+        if (onboardThisCycle) {
+            // derating and the current budget limit the onboard loop's output
+            setOnboardPeakOutput(getOutputScale());
+            // the applied output read back already includes the limit
+            appliedScale = 1;
+            if (!onboardActive || mode != lastOnboardMode || Math.abs(setPoint - lastWrittenOutput) > writeEpsilon
+                    || Math.abs(onboardFeedforward - lastWrittenFeedforward) > writeEpsilon
+                    || nowNanos - lastWriteNanos >= keepAliveNanos) {
+                onboardClosedLoop.setReference(mode, setPoint, onboardFeedforward);
+                lastWrittenOutput = setPoint;
+                lastWrittenFeedforward = onboardFeedforward;
+                lastWriteNanos = nowNanos;
+                lastOnboardMode = mode;
+                onboardActive = true;
+            }
+            return;
+        }
+        if (onboardActive) {
+            // the Java loop scales its own output
+            setOnboardPeakOutput(1);
+            onboardActive = false;
+            hasWritten = false;
+        }
+
+        // with onboard PID on the controller does the inverting itself
+        double value = isMotorInverted && !invertedInController ? -output : output;
+        // masters are written first, so a follower sees its master's scale from this cycle
+        appliedScale = mode == SetMode.Follow ? Math.min(getOutputScale(), master.appliedScale) : getOutputScale();
+        value *= appliedScale;
+        if (hasWritten && Math.abs(value - lastWrittenOutput) <= writeEpsilon
+                && nowNanos - lastWriteNanos < keepAliveNanos) {
+            return;
+        }
+        setSpeed.accept(value);
+        lastWrittenOutput = value;
+        lastWriteNanos = nowNanos;
+        hasWritten = true;
+    }
+
+    /**
+     * Sends a new onboard peak output when it has moved by at least a percent,
+     * or has gone back to full output. It is a config frame, much heavier than a
+     * setpoint, so it is not resent for every small change of the scale
+     */
+    private void setOnboardPeakOutput(double peak) {
+        if (peak != onboardPeakOutput && (Math.abs(peak - onboardPeakOutput) >= peakOutputStep || peak == 1)) {
+            onboardClosedLoop.setPeakOutput(peak);
+            onboardPeakOutput = peak;
+        }
+    }
+
+    /**
+     * Runs the motor until the error is within the threshold. In MotionProfile
+     * mode it also waits for the profile to finish
+     */
     public Command cmdRun(SetMode controlMode, double targetValue, double threshold) {
-        return new BuilderCommand(c -> c.endWhen(Math.abs(getError()) < threshold))
+        return new BuilderCommand(c -> c.endWhen(isOnTarget(controlMode, threshold)))
             .beforeStarting(() -> set(controlMode, targetValue));
     }
 
     public Command cmdRun(SetMode controlMode, double targetValue, double auxTargetValue, double threshold) {
-        return new BuilderCommand(c -> c.endWhen(Math.abs(getError()) < threshold))
+        return new BuilderCommand(c -> c.endWhen(isOnTarget(controlMode, threshold)))
             .beforeStarting(() -> set(controlMode, targetValue, auxTargetValue));
     }
+
+    /**
+     * Tunes a slot with a relay feedback experiment. The motor is driven around
+     * the setpoint until it oscillates steadily, then PID gains are worked out
+     * from the oscillation with the given rule, stored with setPIDF and reported
+     * to the driver station.
+     * A Velocity tune also measures kFF. Afterwards the motor keeps holding the
+     * setpoint with the new gains
+     * <p>
+     * Ex: shooterMotor.cmdAutotune(Slot.Velocity, 3000, 0.2, 50, TuningRule.ZieglerNicholsPI)
+     * </p>
+     *
+     * @param relayAmplitude how far the output swings either side of the average
+     *                       output, between 0 and 1
+     * @param hysteresis     how far past the setpoint the sensor has to go before
+     *                       the output switches, set it just above the sensor
+     *                       noise
+     */
+    public Command cmdAutotune(Slot slot, double setPoint, double relayAmplitude, double hysteresis,
+            TuningRule rule) {
+        if (slot == Slot.Auxiliary) {
+            DriverStation.reportError("The auxiliary slot cannot be autotuned on its own", true);
+            return new BuilderCommand(c -> c.endWhen(true));
+        }
+        // built when the command starts, so the relay is centered on the kFF in use then
+        AtomicReference<RelayAutotuner> tuner = new AtomicReference<>();
+        return new BuilderCommand(c -> c.endWhen(tuner.get().isDone()))
+            .runOnEnd(() -> finishAutotune(slot, setPoint, relayAmplitude, tuner.get(), rule))
+            .beforeStarting(() -> tuner.set(startAutotune(slot, setPoint, relayAmplitude, hysteresis)));
+    }
+
+    /**
+     * Tunes a slot with the Tyreus-Luyben rule and no hysteresis
+     */
+    public Command cmdAutotune(Slot slot, double setPoint, double relayAmplitude) {
+        return cmdAutotune(slot, setPoint, relayAmplitude, 0, TuningRule.TyreusLuyben);
+    }
+
+    /**
+     * Hands the loop over to a new relay experiment, centered on the output the
+     * slot's kFF gives at the setpoint
+     */
+    RelayAutotuner startAutotune(Slot slot, double setPoint, double relayAmplitude, double hysteresis) {
+        RelayAutotuner tuner = new RelayAutotuner(slot.slot, setPoint, relayAmplitude, hysteresis,
+                setPoint * kFF[slot.slot], autotuneTimeoutMs);
+        autotuner = tuner;
+        set(tuneMode(slot), setPoint);
+        return tuner;
+    }
+
+    /**
+     * Stores the gains from a finished experiment, or stops the motor if it was
+     * interrupted or did not oscillate
+     */
+    void finishAutotune(Slot slot, double setPoint, double relayAmplitude, RelayAutotuner tuner,
+            TuningRule rule) {
+        if (autotuner == tuner) {
+            autotuner = null;
+        }
+        if (!tuner.isDone()) {
+            set(0);
+            return;
+        }
+        if (!tuner.hasSucceeded()) {
+            autotuneFailure.accept("Autotune of motor " + deviceId + " " + slot
+                    + " did not oscillate, try a larger relay amplitude");
+            set(0);
+            return;
+        }
+        double ku = tuner.getUltimateGain();
+        double pu = tuner.getUltimatePeriodMs();
+        double p = rule.kpRatio * ku;
+        double i = p / (rule.tiRatio * pu);
+        double d = p * rule.tdRatio * pu;
+        double ff = slot == Slot.Velocity ? tuner.getFeedforwardGain() : kFF[slot.slot];
+        // limit the integral so it can add at most about one relay amplitude of output
+        double izone = relayAmplitude / i;
+
+        setPIDF(slot, p, i, d, ff, izone);
+        resetAllPID();
+        set(tuneMode(slot), setPoint);
+        autotuneResult.accept(String.format(
+                "Autotune motor %d %s: Ku=%.5g Pu=%.1fms -> setPIDF(Slot.%s, %.5g, %.5g, %.5g, %.5g, %.5g)", deviceId,
+                slot, ku, pu, slot, p, i, d, ff, izone));
+    }
+
+    private static SetMode tuneMode(Slot slot) {
+        return slot == Slot.Position ? SetMode.Position : slot == Slot.Velocity ? SetMode.Velocity : SetMode.Sensor;
+    }
+
+    private boolean isOnTarget(SetMode controlMode, double threshold) {
+        if (controlMode == SetMode.MotionProfile && !isProfileFinished()) return false;
+        return Math.abs(getError()) < threshold;
+    }
 }
\ No newline at end of file
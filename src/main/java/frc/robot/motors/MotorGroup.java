@@ -0,0 +1,291 @@
+package frc.robot.motors;
+
+import java.util.function.DoubleSupplier;
+
+import edu.wpi.first.wpilibj2.command.Command;
+import frc.robot.commands.BuilderCommand;
+import frc.robot.motors.Motor.SetMode;
+import frc.robot.motors.Motor.Slot;
+
+/**
+ * Drives the two sides of a differential drivetrain as one unit. Every cycle
+ * the shared heading sensor is read once, one loop runs on the average of the
+ * two sides (distance or speed) and one on the heading, and the coupled outputs
+ * are written to both sides in the same cycle.
+ * <p>
+ * While a motor is in a group the group decides its output, so set() on the
+ * motor itself has no effect. Inversion, followers, derating and the current
+ * budget still apply to each side, and each side's measurement goes through
+ * its own sample cache and filters. remove() hands the motors back.
+ * </p>
+ * <p>
+ * Ex: drive = new MotorGroup(leftMaster, rightMaster, () -> pidgey.getContinuousYaw() / 180.0)
+ * </p>
+ */
+public class MotorGroup {
+    private final Motor left;
+    private final Motor right;
+    private final DoubleSupplier heading;
+
+    // the latest command, published as one snapshot like Motor does
+    private volatile Setpoint command = Setpoint.initial;
+    private Setpoint appliedSetpoint = Setpoint.initial;
+    private int appliedResetCount;
+
+    // PID 0-position, 1-velocity, 3-heading, 2 is unused
+    private final double[] kP = new double[4], kI = new double[4], kD = new double[4], kFF = new double[4],
+            kIzone = new double[4];
+
+    // samples taken once per cycle
+    private long readNanos = -1;
+    private long computeNanos = -1;
+    private long lastComputeNanos;
+    private boolean hasComputed;
+    private double headingMeasurement;
+
+    // time of the newest sample from either side, the loop only differentiates across new samples
+    private long sampleNanos;
+    private boolean hasSample;
+    private double lastDerivative;
+    private double prevTarget;
+
+    private double integral;
+    private double prevError;
+    private double headingIntegral;
+    private double prevHeadingError;
+    private volatile double error;
+    private volatile double headingError;
+
+    private double leftOutput;
+    private double rightOutput;
+
+    /**
+     * @param heading the shared heading, increasing when the robot turns toward
+     *                the left side
+     */
+    public MotorGroup(Motor left, Motor right, DoubleSupplier heading) {
+        this.left = left;
+        this.right = right;
+        this.heading = heading;
+        // both sides have to be due on the same cycles to be written together
+        right.setUpdateRate(left.getUpdateRate());
+        left.group = this;
+        right.group = this;
+    }
+
+    /**
+     * Sets the gains of the distance (Position), speed (Velocity) or heading
+     * (Auxiliary) loop
+     */
+    public void setPIDF(Slot slot, double kP, double kI, double kD, double kFF, double kIzone) {
+        int i = slotIndex(slot);
+        this.kP[i] = kP;
+        this.kI[i] = kI;
+        this.kD[i] = kD;
+        this.kFF[i] = kFF;
+        this.kIzone[i] = kIzone;
+    }
+
+    /**
+     * Sets how often the group runs, for both sides
+     */
+    public void setUpdateRate(double hz) {
+        // a side passes its rate on to the other
+        left.setUpdateRate(hz);
+    }
+
+    /**
+     * Takes a motor out of the group. A drivetrain needs both sides, so the
+     * other side is taken out too and the group stops. Both motors are left at 0
+     * percent output and run their own commands from then on
+     */
+    public void remove(Motor motor) {
+        if (motor != left && motor != right) {
+            throw new IllegalArgumentException("The motor is not in this group");
+        }
+        left.leaveGroup();
+        right.leaveGroup();
+    }
+
+    /**
+     * Drives with a throttle and turn between -1 and 1, no loops are run
+     */
+    public void set(double throttle, double turn) {
+        publish(SetMode.PercentOutput, throttle, turn);
+    }
+
+    /**
+     * Drives the average of both sides to a distance (Position) or speed
+     * (Velocity) while holding a heading
+     */
+    public void set(SetMode mode, double targetValue, double headingTarget) {
+        if (mode != SetMode.Position && mode != SetMode.Velocity && mode != SetMode.PercentOutput) {
+            throw new IllegalArgumentException("A MotorGroup can only use Position, Velocity or PercentOutput");
+        }
+        publish(mode, targetValue, headingTarget);
+    }
+
+    private void publish(SetMode mode, double targetValue, double headingTarget) {
+        Setpoint prev = command;
+        if (mode == prev.mode && targetValue == prev.setPoint && headingTarget == prev.auxSetPoint) {
+            return;
+        }
+        int resetCount = mode != prev.mode ? prev.resetCount + 1 : prev.resetCount;
+        command = new Setpoint(mode, targetValue, headingTarget, true, null, null, resetCount);
+    }
+
+    /**
+     * Clears the integral and derivative state on the next cycle
+     */
+    public void resetAllPID() {
+        command = command.withReset();
+    }
+
+    /**
+     * Gets the error of the distance or speed loop
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Gets the error of the heading loop
+     */
+    public double getHeadingError() {
+        return headingError;
+    }
+
+    /**
+     * Runs the group until both loops are within their thresholds
+     */
+    public Command cmdRun(SetMode controlMode, double targetValue, double headingTarget, double threshold,
+            double headingThreshold) {
+        return new BuilderCommand(c -> c.endWhen(Math.abs(getError()) < threshold
+                && Math.abs(getHeadingError()) < headingThreshold))
+            .beforeStarting(() -> set(controlMode, targetValue, headingTarget));
+    }
+
+    /**
+     * Picks up a new command and reads the heading, once per cycle whichever side
+     * asks first. Each side then takes its own sample in the returned mode
+     */
+    SetMode read(long nowNanos) {
+        if (nowNanos == readNanos) return appliedSetpoint.mode;
+        readNanos = nowNanos;
+        Setpoint cmd = command;
+        if (cmd != appliedSetpoint) {
+            if (cmd.resetCount != appliedResetCount) {
+                integral = 0;
+                prevError = 0;
+                headingIntegral = 0;
+                prevHeadingError = 0;
+                hasSample = false;
+                lastDerivative = 0;
+                appliedResetCount = cmd.resetCount;
+            }
+            appliedSetpoint = cmd;
+        }
+        if (cmd.mode == SetMode.Position || cmd.mode == SetMode.Velocity) {
+            headingMeasurement = heading.getAsDouble();
+        }
+        return cmd.mode;
+    }
+
+    /**
+     * Runs both loops, once per cycle whichever side asks first
+     */
+    void compute(long nowNanos) {
+        if (nowNanos == computeNanos) return;
+        computeNanos = nowNanos;
+        double dtMs = hasComputed ? (nowNanos - lastComputeNanos) / 1e6 : 1000 / left.getUpdateRate();
+        lastComputeNanos = nowNanos;
+        hasComputed = true;
+
+        Setpoint cmd = appliedSetpoint;
+        if (cmd.mode == SetMode.PercentOutput) {
+            leftOutput = cmd.setPoint - cmd.auxSetPoint;
+            rightOutput = cmd.setPoint + cmd.auxSetPoint;
+            return;
+        }
+        int slot = cmd.mode.slot;
+
+        // both sides were read earlier in this cycle
+        double e;
+        double derivative;
+        if (!hasSample || left.newSample || right.newSample) {
+            long newest = Math.max(left.sampleNanos, right.sampleNanos);
+            double sampleDtMs = hasSample ? (newest - sampleNanos) / 1e6 : dtMs;
+            sampleNanos = newest;
+            hasSample = true;
+            e = cmd.setPoint - (left.groupMeasurement + right.groupMeasurement) / 2;
+            if (Math.abs(integral) < kIzone[slot])
+                integral += e * sampleDtMs;
+            derivative = (e - prevError) / sampleDtMs;
+            lastDerivative = derivative;
+        } else {
+            // same samples as last cycle, only the setpoint can have moved
+            e = prevError + (cmd.setPoint - prevTarget);
+            derivative = lastDerivative;
+        }
+        prevTarget = cmd.setPoint;
+        double base = kP[slot] * e + kI[slot] * integral + kD[slot] * derivative + kFF[slot] * cmd.setPoint;
+        prevError = e;
+        error = e;
+
+        double h = cmd.auxSetPoint - headingMeasurement;
+        if (Math.abs(headingIntegral) < kIzone[3])
+            headingIntegral += h * dtMs;
+        double turn = kP[3] * h + kI[3] * headingIntegral + kD[3] * (h - prevHeadingError) / dtMs;
+        prevHeadingError = h;
+        headingError = h;
+
+        leftOutput = base - turn;
+        rightOutput = base + turn;
+        if (cmd.mode == SetMode.Velocity) {
+            // each side keeps its own characterized feedforward
+            leftOutput += left.physicsFeedforward(slot, cmd.setPoint, 0);
+            rightOutput += right.physicsFeedforward(slot, cmd.setPoint, 0);
+        }
+    }
+
+    /**
+     * Clears the loop state after the motor thread was paused, only called by
+     * the motor thread
+     */
+    void restart() {
+        integral = 0;
+        prevError = 0;
+        headingIntegral = 0;
+        prevHeadingError = 0;
+        hasComputed = false;
+        hasSample = false;
+        lastDerivative = 0;
+    }
+
+    /**
+     * Gets the side that is not the given one
+     */
+    Motor otherSide(Motor motor) {
+        return motor == left ? right : left;
+    }
+
+    /**
+     * Gets the output computed for one side this cycle
+     */
+    double outputFor(Motor motor) {
+        return motor == left ? leftOutput : rightOutput;
+    }
+
+    private static int slotIndex(Slot slot) {
+        switch (slot) {
+        case Position:
+            return 0;
+        case Velocity:
+            return 1;
+        case Auxiliary:
+            return 3;
+        default:
+            throw new IllegalArgumentException("A MotorGroup has no " + slot + " slot");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package frc.robot.motors;
+
+/**
+ * Watches a motor's current and velocity from inside the control loop.
+ * <p>
+ * Heating is estimated with a first order I^2*t model: the thermal load
+ * follows (current / continuous current)^2 with the given time constant, so a
+ * load of 1 means the motor has been running at its continuous rating long
+ * enough to reach that temperature. Past the derating threshold the output is
+ * scaled down smoothly, which brings the current back under the rating without
+ * cutting the mechanism out.
+ * </p>
+ * <p>
+ * A stall is current above the stall current while the velocity stays below
+ * the stall velocity for the whole stall time.
+ * </p>
+ */
+final class MotorHealth {
+    // thermal load where derating starts, and the output scale once it reaches 1
+    private static final double derateStart = 0.8;
+    private static final double minOutputScale = 0.25;
+
+    private final double continuousCurrentSquared;
+    private final double thermalTimeConstantMs;
+    private final double stallCurrent;
+    private final double stallVelocity;
+    private final double stallTimeMs;
+
+    // samples taken in the read phase
+    double current;
+    double velocity;
+
+    private double stalledMs;
+
+    private volatile double thermalLoad;
+    private volatile double outputScale = 1;
+    private volatile boolean stalled;
+
+    MotorHealth(double continuousCurrent, double thermalTimeConstantSec, double stallCurrent, double stallVelocity,
+            double stallTimeSec) {
+        this.continuousCurrentSquared = continuousCurrent * continuousCurrent;
+        this.thermalTimeConstantMs = thermalTimeConstantSec * 1000;
+        this.stallCurrent = stallCurrent;
+        this.stallVelocity = stallVelocity;
+        this.stallTimeMs = stallTimeSec * 1000;
+    }
+
+    /**
+     * Updates the estimates with the latest samples
+     *
+     * @param dtMs the time since the last update in milliseconds
+     */
+    void update(double dtMs) {
+        double i = Math.abs(current);
+        double load = thermalLoad;
+        load += (i * i / continuousCurrentSquared - load) * (1 - Math.exp(-dtMs / thermalTimeConstantMs));
+        setThermalLoad(load);
+
+        if (i > stallCurrent && Math.abs(velocity) < stallVelocity) {
+            stalledMs += dtMs;
+        } else {
+            stalledMs = 0;
+        }
+        stalled = stalledMs >= stallTimeMs;
+    }
+
+    /**
+     * Lets the motor cool with no current for the time it was not being
+     * updated, and forgets any stall in progress
+     *
+     * @param elapsedMs how long the motor was not driven in milliseconds
+     */
+    void coolDown(double elapsedMs) {
+        setThermalLoad(thermalLoad * Math.exp(-elapsedMs / thermalTimeConstantMs));
+        stalledMs = 0;
+        stalled = false;
+    }
+
+    private void setThermalLoad(double load) {
+        thermalLoad = load;
+        if (load <= derateStart) {
+            outputScale = 1;
+        } else {
+            double over = Math.min(1, (load - derateStart) / (1 - derateStart));
+            outputScale = 1 - over * (1 - minOutputScale);
+        }
+    }
+
+    double getThermalLoad() {
+        return thermalLoad;
+    }
+
+    double getOutputScale() {
+        return outputScale;
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+}
@@ -0,0 +1,140 @@
+package frc.robot.motors;
+
+import java.util.function.DoubleSupplier;
+
+import com.ctre.phoenix.motorcontrol.ControlMode;
+import com.ctre.phoenix.motorcontrol.DemandType;
+import com.ctre.phoenix.motorcontrol.can.BaseMotorController;
+import com.revrobotics.CANPIDController;
+import com.revrobotics.CANSparkMax;
+import com.revrobotics.ControlType;
+
+import frc.robot.motors.Motor.SetMode;
+
+/**
+ * Runs a motor's Position or Velocity loop on the motor controller itself.
+ * Gains and setpoints are given in the same units as the Java loop in
+ * {@link Motor} and converted to the controller's native units here, so a set
+ * of gains behaves the same whichever side runs it.
+ */
+interface OnboardClosedLoop {
+    /**
+     * Pushes the gains for a slot into the controller's matching native slot
+     */
+    void setGains(int slot, double kP, double kI, double kD, double kFF, double kIzone);
+
+    /**
+     * Starts (or updates) the onboard loop for the given mode and setpoint
+     *
+     * @param feedforward an extra output added by the controller, between -1 and 1
+     */
+    void setReference(SetMode mode, double setPoint, double feedforward);
+
+    /**
+     * Inverts the controller's output, and the sensor with it on controllers that
+     * tie the two together. Only set while onboard PID is on, and only when the
+     * motor is inverted or onboard PID is turned on or off, so switching between
+     * the onboard and Java loop from cycle to cycle never flips the direction
+     */
+    void setInverted(boolean inverted);
+
+    /**
+     * Limits the output the onboard loop can apply, between 0 and 1
+     */
+    void setPeakOutput(double peak);
+
+    /**
+     * Gets the output the controller is applying, between -1 and 1, in the
+     * motor's own direction (after inversion)
+     */
+    double getAppliedOutput();
+
+    /**
+     * Talon SRX and Talon FX closed loop. Talon gains are in 1023 output units per
+     * native sensor unit, the integral and derivative are per 1 ms loop (the same
+     * time unit as the Java loop) and the Java integral limit maps onto the
+     * maximum integral accumulator
+     *
+     * @param conversionFactor the motor's current conversion from native units
+     */
+    static OnboardClosedLoop forTalon(BaseMotorController talon, DoubleSupplier conversionFactor) {
+        return new OnboardClosedLoop() {
+            @Override
+            public void setGains(int slot, double kP, double kI, double kD, double kFF, double kIzone) {
+                double scale = 1023 * conversionFactor.getAsDouble();
+                talon.config_kP(slot, kP * scale);
+                // the Java loop never integrates with a zero integral limit
+                talon.config_kI(slot, kIzone == 0 ? 0 : kI * scale);
+                talon.config_kD(slot, kD * scale);
+                talon.config_kF(slot, kFF * scale);
+                talon.configMaxIntegralAccumulator(slot, kIzone / conversionFactor.getAsDouble());
+            }
+
+            @Override
+            public void setReference(SetMode mode, double setPoint, double feedforward) {
+                talon.selectProfileSlot(mode.slot, 0);
+                talon.set(mode == SetMode.Position ? ControlMode.Position : ControlMode.Velocity,
+                        setPoint / conversionFactor.getAsDouble(), DemandType.ArbitraryFeedForward, feedforward);
+            }
+
+            @Override
+            public void setInverted(boolean inverted) {
+                talon.setInverted(inverted);
+            }
+
+            @Override
+            public void setPeakOutput(double peak) {
+                // no timeout, so the motor thread does not wait on the config frame
+                talon.configPeakOutputForward(peak, 0);
+                talon.configPeakOutputReverse(-peak, 0);
+            }
+
+            @Override
+            public double getAppliedOutput() {
+                return talon.getMotorOutputPercent();
+            }
+        };
+    }
+
+    /**
+     * Spark MAX closed loop. The Spark runs in the same units the Java loop sees
+     * (rotations and RPM) with output from -1 to 1 and a 1 ms loop, so gains pass
+     * through unchanged
+     */
+    static OnboardClosedLoop forSparkMax(CANSparkMax neo) {
+        CANPIDController pid = neo.getPIDController();
+        return new OnboardClosedLoop() {
+            @Override
+            public void setGains(int slot, double kP, double kI, double kD, double kFF, double kIzone) {
+                pid.setP(kP, slot);
+                pid.setI(kIzone == 0 ? 0 : kI, slot);
+                pid.setD(kD, slot);
+                pid.setFF(kFF, slot);
+                pid.setIMaxAccum(kIzone, slot);
+            }
+
+            @Override
+            public void setReference(SetMode mode, double setPoint, double feedforward) {
+                // the Spark takes its arbitrary feedforward in volts
+                pid.setReference(setPoint, mode == SetMode.Position ? ControlType.kPosition : ControlType.kVelocity,
+                        mode.slot, feedforward * neo.getBusVoltage());
+            }
+
+            @Override
+            public void setInverted(boolean inverted) {
+                neo.setInverted(inverted);
+            }
+
+            @Override
+            public void setPeakOutput(double peak) {
+                pid.setOutputRange(-peak, peak, SetMode.Position.slot);
+                pid.setOutputRange(-peak, peak, SetMode.Velocity.slot);
+            }
+
+            @Override
+            public double getAppliedOutput() {
+                return neo.getAppliedOutput();
+            }
+        };
+    }
+}
@@ -0,0 +1,82 @@
+package frc.robot.motors;
+
+/**
+ * Shapes a motor's output at loop rate: clamps it between a minimum and
+ * maximum, limits how fast it can grow (accel) and shrink toward zero (decel),
+ * and optionally limits how fast that rate itself can change (jerk). With a
+ * jerk limit the rate is also eased off before the target so the output lands
+ * on it instead of overshooting.
+ * <p>
+ * Rates are in output per second and jerk in output per second squared, a
+ * limit of 0 turns that limit off.
+ * </p>
+ */
+final class OutputShaper {
+    private volatile double minOutput = -1;
+    private volatile double maxOutput = 1;
+    private volatile double accelLimit;
+    private volatile double decelLimit;
+    private volatile double jerkLimit;
+
+    // only touched by the motor thread
+    private double output;
+    private double rate;
+
+    void setLimits(double minOutput, double maxOutput) {
+        this.minOutput = minOutput;
+        this.maxOutput = maxOutput;
+    }
+
+    void setRampRates(double accelLimit, double decelLimit) {
+        this.accelLimit = accelLimit;
+        this.decelLimit = decelLimit;
+    }
+
+    void setJerkLimit(double jerkLimit) {
+        this.jerkLimit = jerkLimit;
+    }
+
+    /**
+     * Starts again from zero output, only called by the motor thread
+     */
+    void reset() {
+        output = 0;
+        rate = 0;
+    }
+
+    /**
+     * Moves the shaped output toward the requested one and returns it
+     *
+     * @param dtMs the time since the last call in milliseconds
+     */
+    double shape(double requested, double dtMs) {
+        double target = Math.max(minOutput, Math.min(maxOutput, requested));
+        double dt = dtMs / 1000;
+        if (dt <= 0) return output;
+        double change = target - output;
+
+        // growing the magnitude is accelerating, shrinking it toward zero is decelerating
+        double limit = output * change > 0 || output == 0 ? accelLimit : decelLimit;
+        double wanted = change / dt;
+        if (limit > 0) {
+            wanted = Math.max(-limit, Math.min(limit, wanted));
+        }
+        double jerk = jerkLimit;
+        if (jerk > 0) {
+            // the fastest rate that can still be brought to zero by the target
+            double stoppable = Math.sqrt(2 * jerk * Math.abs(change));
+            wanted = Math.max(-stoppable, Math.min(stoppable, wanted));
+            wanted = Math.max(rate - jerk * dt, Math.min(rate + jerk * dt, wanted));
+        }
+
+        double next = output + wanted * dt;
+        if ((next - target) * change > 0) {
+            // would pass the target this step, land on it and stop
+            next = target;
+            wanted = 0;
+        }
+        rate = wanted;
+        output = next;
+        return output;
+    }
+}
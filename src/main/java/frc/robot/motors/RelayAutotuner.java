@@ -0,0 +1,191 @@
+package frc.robot.motors;
+
+/**
+ * Relay feedback experiment (Astrom-Hagglund). The output is switched between
+ * bias + amplitude and bias - amplitude each time the measurement crosses the
+ * setpoint, which makes the loop oscillate at its ultimate period. The size of
+ * the oscillation gives the ultimate gain, Ku = 4d / (pi * a).
+ * <p>
+ * The first few cycles are used to settle and to move the bias to the average
+ * output of a cycle, so the oscillation ends up centered on the setpoint. The
+ * period and amplitude are then averaged over the next few cycles.
+ * </p>
+ * <p>
+ * All time comes in through update, so the experiment runs the same against a
+ * simulated plant stepped at any rate.
+ * </p>
+ */
+final class RelayAutotuner {
+    private static final int settleCycles = 3;
+    private static final int measuredCycles = 4;
+
+    final int slot;
+    private final double setPoint;
+    private final double amplitude;
+    private final double hysteresis;
+    private final double timeoutMs;
+    private final double initialBias;
+
+    private double bias;
+    private boolean relayHigh;
+    private boolean hasRisen;
+    private double elapsedMs;
+    private double lastRiseMs;
+    private double max, min;
+    private double cycleOutputSum;
+    private int cycles;
+
+    private double periodSum;
+    private double amplitudeSum;
+    private double measurementSum;
+    private double outputSum;
+    private double measuredMs;
+
+    private volatile boolean done;
+    private volatile boolean succeeded;
+
+    /**
+     * @param slot       the PID slot being tuned
+     * @param amplitude  how far the relay moves the output either side of the
+     *                   bias, between 0 and 1
+     * @param hysteresis how far past the setpoint the measurement has to go before
+     *                   the relay switches, keeps sensor noise from chattering it
+     * @param bias       the starting output the relay switches around
+     */
+    RelayAutotuner(int slot, double setPoint, double amplitude, double hysteresis, double bias, double timeoutMs) {
+        this.slot = slot;
+        this.setPoint = setPoint;
+        this.amplitude = amplitude;
+        this.hysteresis = hysteresis;
+        this.initialBias = bias;
+        this.timeoutMs = timeoutMs;
+        reset();
+    }
+
+    /**
+     * Starts the experiment over
+     */
+    void reset() {
+        bias = initialBias;
+        relayHigh = true;
+        hasRisen = false;
+        elapsedMs = 0;
+        lastRiseMs = 0;
+        max = Double.NEGATIVE_INFINITY;
+        min = Double.POSITIVE_INFINITY;
+        cycleOutputSum = 0;
+        cycles = 0;
+        periodSum = 0;
+        amplitudeSum = 0;
+        measurementSum = 0;
+        outputSum = 0;
+        measuredMs = 0;
+        succeeded = false;
+        done = false;
+    }
+
+    /**
+     * Feeds one sample and gets the relay output, between -1 and 1
+     *
+     * @param dtMs the time since the previous update in milliseconds
+     */
+    double update(double measurement, double dtMs) {
+        if (done) return bias;
+        elapsedMs += dtMs;
+        if (elapsedMs > timeoutMs) {
+            done = true;
+            return bias;
+        }
+
+        double error = setPoint - measurement;
+        if (relayHigh && error < -hysteresis) {
+            relayHigh = false;
+        } else if (!relayHigh && error > hysteresis) {
+            relayHigh = true;
+            endCycle();
+            if (done) return bias;
+        }
+        max = Math.max(max, measurement);
+        min = Math.min(min, measurement);
+
+        double out = Math.max(-1, Math.min(1, bias + (relayHigh ? amplitude : -amplitude)));
+        cycleOutputSum += out * dtMs;
+        if (cycles > settleCycles) {
+            measurementSum += measurement * dtMs;
+            outputSum += out * dtMs;
+            measuredMs += dtMs;
+        }
+        return out;
+    }
+
+    /**
+     * Called on each rising switch of the relay, which ends one full oscillation
+     */
+    private void endCycle() {
+        if (hasRisen) {
+            double period = elapsedMs - lastRiseMs;
+            cycles++;
+            if (cycles <= settleCycles) {
+                // center the oscillation on the setpoint
+                bias = Math.max(-1, Math.min(1, cycleOutputSum / period));
+            } else {
+                periodSum += period;
+                amplitudeSum += (max - min) / 2;
+                if (cycles == settleCycles + measuredCycles) {
+                    succeeded = getAmplitude() > hysteresis;
+                    done = true;
+                }
+            }
+        }
+        hasRisen = true;
+        lastRiseMs = elapsedMs;
+        cycleOutputSum = 0;
+        max = Double.NEGATIVE_INFINITY;
+        min = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Gets if the experiment has ended, successfully or not
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Gets if the experiment measured a usable oscillation
+     */
+    boolean hasSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Gets the average peak to peak half amplitude of the measurement
+     */
+    double getAmplitude() {
+        return amplitudeSum / measuredCycles;
+    }
+
+    /**
+     * Gets the ultimate period in milliseconds
+     */
+    double getUltimatePeriodMs() {
+        return periodSum / measuredCycles;
+    }
+
+    /**
+     * Gets the ultimate gain, corrected for the relay's hysteresis
+     */
+    double getUltimateGain() {
+        double a = getAmplitude();
+        return 4 * amplitude / (Math.PI * Math.sqrt(a * a - hysteresis * hysteresis));
+    }
+
+    /**
+     * Gets the average output over the average measurement while the oscillation
+     * was measured, which is the kFF of a velocity loop
+     */
+    double getFeedforwardGain() {
+        if (measuredMs <= 0 || measurementSum == 0) return 0;
+        return outputSum / measurementSum;
+    }
+}
@@ -0,0 +1,41 @@
+package frc.robot.motors;
+
+import frc.robot.motors.Motor.SetMode;
+
+/**
+ * Everything the motor thread needs to know about what a motor was told to do,
+ * published as one immutable object. A reader always sees a mode together with
+ * the setpoints it was set with.
+ */
+final class Setpoint {
+    static final Setpoint initial = new Setpoint(SetMode.PercentOutput, 0, 0, false, null, null, 0);
+
+    final SetMode mode;
+    final double setPoint;
+    final double auxSetPoint;
+    final boolean useAux;
+    // the motor to copy in Follow mode
+    final Motor master;
+    // the profile to run in MotionProfile mode
+    final MotionProfile profile;
+    // bumped each time the PID state should be cleared
+    final int resetCount;
+
+    Setpoint(SetMode mode, double setPoint, double auxSetPoint, boolean useAux, Motor master, MotionProfile profile,
+            int resetCount) {
+        this.mode = mode;
+        this.setPoint = setPoint;
+        this.auxSetPoint = auxSetPoint;
+        this.useAux = useAux;
+        this.master = master;
+        this.profile = profile;
+        this.resetCount = resetCount;
+    }
+
+    /**
+     * Gets the same setpoint with a PID reset requested
+     */
+    Setpoint withReset() {
+        return new Setpoint(mode, setPoint, auxSetPoint, useAux, master, profile, resetCount + 1);
+    }
+}
@@ -0,0 +1,190 @@
+package frc.robot.motors;
+
+/**
+ * A stage in a motor's filter pipeline. Every filter does a constant amount of
+ * work per sample and allocates nothing after it is created.
+ * <p>
+ * Filters keep state, so each one should only be given to a single motor slot.
+ * </p>
+ * <p>
+ * Ex: motor.setMeasurementFilter(Slot.Velocity, SignalFilter.chain(SignalFilter.median(3), SignalFilter.exponential(0.3)))
+ * </p>
+ */
+public interface SignalFilter {
+    /**
+     * Adds a sample and returns the filtered value
+     */
+    double calculate(double value);
+
+    /**
+     * Forgets all previous samples
+     */
+    void reset();
+
+    /**
+     * Average of the last few samples, kept as a running sum
+     */
+    static SignalFilter movingAverage(int window) {
+        return new SignalFilter() {
+            private final double[] samples = new double[window];
+            private int index;
+            private int count;
+            private double sum;
+
+            @Override
+            public double calculate(double value) {
+                sum += value - samples[index];
+                samples[index] = value;
+                index++;
+                if (index >= window) {
+                    index = 0;
+                    // re-sum once per lap so rounding error cannot build up
+                    sum = 0;
+                    for (double d : samples) {
+                        sum += d;
+                    }
+                }
+                if (count < window) count++;
+                return sum / count;
+            }
+
+            @Override
+            public void reset() {
+                for (int i = 0; i < window; i++) {
+                    samples[i] = 0;
+                }
+                index = 0;
+                count = 0;
+                sum = 0;
+            }
+        };
+    }
+
+    /**
+     * Exponential moving average, alpha is the weight of the newest sample (0-1]
+     */
+    static SignalFilter exponential(double alpha) {
+        return new SignalFilter() {
+            private double value;
+            private boolean hasValue;
+
+            @Override
+            public double calculate(double sample) {
+                if (!hasValue) {
+                    value = sample;
+                    hasValue = true;
+                } else {
+                    value += alpha * (sample - value);
+                }
+                return value;
+            }
+
+            @Override
+            public void reset() {
+                hasValue = false;
+            }
+        };
+    }
+
+    /**
+     * Median of the last few samples, meant for small windows like 3 or 5 to
+     * throw out single sample spikes
+     */
+    static SignalFilter median(int window) {
+        return new SignalFilter() {
+            private final double[] samples = new double[window];
+            private final double[] sorted = new double[window];
+            private int index;
+            private int count;
+
+            @Override
+            public double calculate(double value) {
+                // take the oldest sample out of the sorted copy
+                if (count == window) {
+                    double old = samples[index];
+                    int i = 0;
+                    while (i < count - 1 && sorted[i] != old) i++;
+                    for (; i < count - 1; i++) {
+                        sorted[i] = sorted[i + 1];
+                    }
+                    count--;
+                }
+                samples[index] = value;
+                index = (index + 1) % window;
+
+                int i = count;
+                while (i > 0 && sorted[i - 1] > value) {
+                    sorted[i] = sorted[i - 1];
+                    i--;
+                }
+                sorted[i] = value;
+                count++;
+
+                return (count % 2 == 1) ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+            }
+
+            @Override
+            public void reset() {
+                index = 0;
+                count = 0;
+            }
+        };
+    }
+
+    /**
+     * One dimensional Kalman filter for a value that drifts randomly
+     *
+     * @param processNoise how much the real value is expected to change between
+     *                     samples (variance)
+     * @param measurementNoise how noisy each sample is (variance)
+     */
+    static SignalFilter kalman(double processNoise, double measurementNoise) {
+        return new SignalFilter() {
+            private double estimate;
+            private double errorCovariance;
+            private boolean hasValue;
+
+            @Override
+            public double calculate(double value) {
+                if (!hasValue) {
+                    estimate = value;
+                    errorCovariance = measurementNoise;
+                    hasValue = true;
+                    return estimate;
+                }
+                errorCovariance += processNoise;
+                double gain = errorCovariance / (errorCovariance + measurementNoise);
+                estimate += gain * (value - estimate);
+                errorCovariance *= 1 - gain;
+                return estimate;
+            }
+
+            @Override
+            public void reset() {
+                hasValue = false;
+            }
+        };
+    }
+
+    /**
+     * Runs the stages one after another
+     */
+    static SignalFilter chain(SignalFilter... stages) {
+        return new SignalFilter() {
+            @Override
+            public double calculate(double value) {
+                for (int i = 0; i < stages.length; i++) {
+                    value = stages[i].calculate(value);
+                }
+                return value;
+            }
+
+            @Override
+            public void reset() {
+                for (int i = 0; i < stages.length; i++) {
+                    stages[i].reset();
+                }
+            }
+        };
+    }
+}
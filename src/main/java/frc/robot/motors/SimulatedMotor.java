@@ -0,0 +1,215 @@
+package frc.robot.motors;
+
+/**
+ * A brushed or brushless DC motor driving an inertia, used in place of a motor
+ * controller off the robot. The motor is modeled from its datasheet (stall
+ * torque, stall current, free speed, free current) and the speed is advanced
+ * with the exact solution of the motor equation, so it stays stable at any
+ * step size.
+ * <p>
+ * Like a real controller, the sensor values it reports are only refreshed
+ * every feedback frame period. Position is reported in rotations and velocity
+ * in RPM at the output of the gearing.
+ * </p>
+ * <p>
+ * Ex: Motor flywheel = Motor.createSimulated(1, SimulatedMotor.falcon500(1.5, 0.004))
+ * </p>
+ */
+public class SimulatedMotor {
+    // voltage seen by every simulated motor, stands in for the battery
+    private static volatile double busVoltage = 12;
+
+    // motor constants, at the motor shaft
+    private final double kT; // Nm per amp
+    private final double kV; // rad/s per volt
+    private final double resistance;
+    private final double freeCurrent;
+
+    private final double gearing;
+    private final double inertia;
+
+    private double output;
+    private boolean brake = true;
+    private double currentLimit;
+    private double voltageCompensation;
+    private double loadTorque;
+
+    // true state, at the output of the gearing
+    private double position; // rad
+    private double velocity; // rad/s
+    private double current;
+
+    // what the controller last reported
+    private double framePeriod = 0.010;
+    private double sinceFrame;
+    private double reportedPosition;
+    private double reportedVelocity;
+
+    /**
+     * @param stallTorque  in Nm
+     * @param stallCurrent in amps
+     * @param freeSpeedRpm in RPM
+     * @param freeCurrent  in amps
+     * @param gearing      motor rotations per output rotation
+     * @param inertia      moment of inertia at the output in kg m^2
+     */
+    public SimulatedMotor(double stallTorque, double stallCurrent, double freeSpeedRpm, double freeCurrent,
+            double gearing, double inertia) {
+        this.resistance = 12 / stallCurrent;
+        this.kT = stallTorque / stallCurrent;
+        this.kV = freeSpeedRpm * 2 * Math.PI / 60 / (12 - freeCurrent * resistance);
+        this.freeCurrent = freeCurrent;
+        this.gearing = gearing;
+        this.inertia = inertia;
+    }
+
+    public static SimulatedMotor falcon500(double gearing, double inertia) {
+        return new SimulatedMotor(4.69, 257, 6380, 1.5, gearing, inertia);
+    }
+
+    public static SimulatedMotor neo(double gearing, double inertia) {
+        return new SimulatedMotor(2.6, 105, 5676, 1.8, gearing, inertia);
+    }
+
+    public static SimulatedMotor cim(double gearing, double inertia) {
+        return new SimulatedMotor(2.42, 133, 5310, 2.7, gearing, inertia);
+    }
+
+    public static SimulatedMotor venom(double gearing, double inertia) {
+        return new SimulatedMotor(3.5, 220, 6000, 1.9, gearing, inertia);
+    }
+
+    /**
+     * Sets the voltage every simulated motor runs from
+     */
+    public static void setBusVoltage(double voltage) {
+        busVoltage = voltage;
+    }
+
+    public static double getBusVoltage() {
+        return busVoltage;
+    }
+
+    /**
+     * Sets a constant torque on the output in Nm, like gravity on an arm. A
+     * positive load pushes the position down
+     */
+    public void setLoadTorque(double torque) {
+        this.loadTorque = torque;
+    }
+
+    /**
+     * Moves the output to a position in rotations and stops it
+     */
+    public void reset(double rotations) {
+        position = rotations * 2 * Math.PI;
+        velocity = 0;
+        current = 0;
+        reportedPosition = rotations;
+        reportedVelocity = 0;
+    }
+
+    /**
+     * Gets the true position in rotations, without waiting for a feedback frame
+     */
+    public double getPosition() {
+        return position / (2 * Math.PI);
+    }
+
+    /**
+     * Gets the true velocity in RPM, without waiting for a feedback frame
+     */
+    public double getVelocity() {
+        return velocity * 60 / (2 * Math.PI);
+    }
+
+    /**
+     * Gets the stator current in amps
+     */
+    public double getCurrent() {
+        return Math.abs(current);
+    }
+
+    /**
+     * Gets the last output the motor was given, between -1 and 1
+     */
+    public double getAppliedOutput() {
+        return output;
+    }
+
+    double getReportedPosition() {
+        return reportedPosition;
+    }
+
+    double getReportedVelocity() {
+        return reportedVelocity;
+    }
+
+    void setOutput(double output) {
+        this.output = Math.max(-1, Math.min(1, output));
+    }
+
+    void setBrake(boolean brake) {
+        this.brake = brake;
+    }
+
+    void setCurrentLimit(double amps) {
+        this.currentLimit = amps;
+    }
+
+    void setVoltageCompensation(double voltage) {
+        this.voltageCompensation = voltage;
+    }
+
+    void setFeedbackFramePeriod(int periodMs) {
+        this.framePeriod = periodMs / 1000.0;
+    }
+
+    /**
+     * Advances the model by dt seconds
+     */
+    void step(double dt) {
+        double supply = voltageCompensation > 0 ? Math.min(voltageCompensation, busVoltage) : busVoltage;
+        double voltage = output * supply;
+        double motorSpeed = velocity * gearing;
+        double start = velocity;
+
+        if (output == 0 && !brake) {
+            // coasting, the windings are open
+            current = 0;
+            velocity += accelerationFromCurrent(0) * dt;
+        } else {
+            current = (voltage - motorSpeed / kV) / resistance;
+            if (currentLimit > 0 && Math.abs(current) > currentLimit) {
+                current = Math.copySign(currentLimit, current);
+                velocity += accelerationFromCurrent(current) * dt;
+            } else {
+                // dw/dt = a*w + b, solved exactly over the step
+                double a = -gearing * gearing * kT / (kV * resistance * inertia);
+                double b = (gearing * kT * voltage / resistance - load(start)) / inertia;
+                double decay = Math.exp(a * dt);
+                velocity = velocity * decay + b / -a * (1 - decay);
+                current = (voltage - velocity * gearing / kV) / resistance;
+            }
+        }
+        position += (start + velocity) / 2 * dt;
+
+        sinceFrame += dt;
+        if (sinceFrame >= framePeriod) {
+            sinceFrame = 0;
+            reportedPosition = getPosition();
+            reportedVelocity = getVelocity();
+        }
+    }
+
+    private double accelerationFromCurrent(double amps) {
+        return (gearing * kT * amps - load(velocity)) / inertia;
+    }
+
+    /**
+     * The load torque plus the friction that causes the free current
+     */
+    private double load(double speed) {
+        return loadTorque + Math.signum(speed) * gearing * kT * freeCurrent;
+    }
+}
@@ -0,0 +1,117 @@
+package frc.robot.motors;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable timing wheel for the motor thread. Each slot holds the motors
+ * that are due on that tick, already in update order, so a tick only walks the
+ * motors that actually need to run.
+ */
+final class TimingWheel {
+    /** Length of the wheel in base ticks. Every update interval must divide it */
+    static final int wheelTicks = 1000;
+
+    final int tickInterval;
+    private final Motor[][] slots;
+    // base ticks from each slot to the next slot with motors in it
+    private final int[] nextStep;
+
+    /**
+     * Builds a wheel for the given motors
+     *
+     * @param ordered all motors in update order
+     * @param intervalTicks how many base ticks between updates of each motor
+     * @param idleInterval the tick interval to use when there are no motors
+     */
+    TimingWheel(Motor[] ordered, int[] intervalTicks, int idleInterval) {
+        int gcd = 0;
+        for (int interval : intervalTicks) {
+            gcd = gcd(gcd, interval);
+        }
+        tickInterval = gcd == 0 ? idleInterval : gcd;
+
+        slots = new Motor[wheelTicks / tickInterval][];
+        ArrayList<Motor> due = new ArrayList<Motor>();
+        for (int s = 0; s < slots.length; s++) {
+            int tick = s * tickInterval;
+            due.clear();
+            for (int i = 0; i < ordered.length; i++) {
+                if (tick % intervalTicks[i] == 0) {
+                    due.add(ordered[i]);
+                }
+            }
+            // share the array when a slot matches the one before it
+            if (s > 0 && sameMotors(slots[s - 1], due)) {
+                slots[s] = slots[s - 1];
+            } else {
+                slots[s] = due.toArray(new Motor[due.size()]);
+            }
+        }
+
+        // walk backwards so each slot knows the next one that has work, wrapping
+        // around the end of the wheel
+        nextStep = new int[slots.length];
+        int next = -1;
+        for (int s = 0; s < slots.length && next < 0; s++) {
+            if (slots[s].length > 0) next = s + slots.length;
+        }
+        for (int s = slots.length - 1; s >= 0; s--) {
+            nextStep[s] = next < 0 ? tickInterval : (next - s) * tickInterval;
+            if (next >= 0 && slots[s].length > 0) next = s;
+        }
+    }
+
+    /**
+     * Gets the motors due on the given base tick
+     */
+    Motor[] slot(long tick) {
+        return slots[(int) (tick % wheelTicks) / tickInterval];
+    }
+
+    /**
+     * Gets how many base ticks after the given tick the next motors are due. Mixed
+     * rates can make the tick interval much shorter than any motor's interval,
+     * this lets the thread sleep through the empty slots in between
+     */
+    int stepAfter(long tick) {
+        return nextStep[(int) (tick % wheelTicks) / tickInterval];
+    }
+
+    /**
+     * Gets the update interval closest to the requested rate that divides the
+     * wheel evenly
+     *
+     * @param hz the requested update rate
+     * @param baseRateHz the rate of one base tick
+     */
+    static int intervalForRate(double hz, int baseRateHz) {
+        int best = 1;
+        double bestError = Double.MAX_VALUE;
+        for (int d = 1; d <= wheelTicks; d++) {
+            if (wheelTicks % d != 0) continue;
+            double error = Math.abs((double) baseRateHz / d - hz);
+            if (error < bestError) {
+                best = d;
+                bestError = error;
+            }
+        }
+        return best;
+    }
+
+    private static boolean sameMotors(Motor[] slot, ArrayList<Motor> due) {
+        if (slot.length != due.size()) return false;
+        for (int i = 0; i < slot.length; i++) {
+            if (slot[i] != due.get(i)) return false;
+        }
+        return true;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -18,7 +18,6 @@
 package frc.robot.sensors;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 import edu.wpi.first.hal.I2CJNI;
 import edu.wpi.first.wpilibj.I2C.Port;
@@ -46,6 +45,7 @@ public class GarminLidar
       public static final int ER_NO_RESPONSE     = 0xFFFF;
       public static final int ER_TIMEOUT_EXPIRED = 0xFFFE;
       public static final int ER_ADDRESS_ODD     = 0xFFFD;
+      public static final int ER_STALE_SAMPLE    = 0xFFFC;
       public static final int ER_LAST_ERROR      = 0xFFF0;
       public static final int OK_RETURNED_GOOD   = 0x0000;
 
@@ -56,6 +56,16 @@ public class GarminLidar
       public static final int HIGH_SENSITIVITY_DETECTION = 0x04;
       public static final int LOW_SENSITIVITY_DETECTION  = 0x05;
 
+      // How much a reading can be trusted, only Valid readings are averaged
+      public enum Quality
+      {
+        Valid,
+        Error,
+        OutOfRange,
+        WeakSignal,
+        Outlier
+      }
+
       //----------------------------------------------------------------------------
       // Private Constants
       //----------------------------------------------------------------------------
@@ -64,8 +74,10 @@ public class GarminLidar
       private static final int STATUS         = 0x01;
       private static final int SIG_COUNT_VAL  = 0x02;
       private static final int ACQ_CONFIG_REG = 0x04;
+      private static final int PEAK_CORR      = 0x0e;
       private static final int FULL_DELAY_HIGH = 0x0f;
 //      private static final int FULL_DELAY_LOW = 0x10;
+      private static final int OUTER_LOOP_COUNT = 0x11;
       private static final int UINT_ID_HIGH   = 0x16;
 //      private static final int UINT_ID_LOW    = 0x17;
       private static final int I2C_ID_HIGH    = 0x18;
@@ -73,6 +85,7 @@ public class GarminLidar
       private static final int I2C_SEC_ADDR   = 0x1A;
       private static final int THRESHOLD_BHYPASS = 0x1C;
       private static final int I2C_CONFIG     = 0x1E;
+      private static final int MEASURE_DELAY  = 0x45;
       
       private static final int ONLY_RESPOND_TO_ADDRESS = 0x08;
       private static final int RESPOND_TO_DEFAULT      = 0x00;
@@ -86,10 +99,23 @@ public class GarminLidar
       private static final int HIGH_THRESHOLD          = 0xB0;
       private static final int WITHOUT_RECEIVER_BIAS   = 0x03;
       private static final int WITH_RECEIVER_BIAS      = 0x04;
+      private static final int USE_MEASURE_DELAY       = 0x20;
+      private static final int REPEAT_FOREVER          = 0xFF;
+      private static final int SINGLE_MEASUREMENT      = 0x01;
+      private static final double MEASURE_DELAY_TICKS_PER_SECOND = 2000;
 
-      private static final byte DEFAULT_ADDRESS = 0x62;
+      static final byte DEFAULT_ADDRESS = 0x62;
 
       private static final int TIMEOUT_COUNTER = 3;    
+      private static final int BIAS_CORRECTION_INTERVAL = 100;
+      private static final int BUSY_RETRIES = 10;
+      private static final double ERROR_BACKOFF_SECONDS = 0.01;
+      private static final int DEFAULT_WINDOW = 10;
+      private static final int STALE_PERIODS = 5;
+      private static final int MAX_RANGE_CM = 4000;
+      private static final int OUTLIER_WINDOW = 7;
+      private static final double OUTLIER_SIGMAS = 3;
+      private static final double OUTLIER_MIN_CM = 5;
       
       
       public static final int m_Serial = 0x1440;
@@ -101,12 +127,63 @@ public class GarminLidar
       private int mSerialNumber = 0;
       private byte mAddress = DEFAULT_ADDRESS;
       private boolean mDebug = false;
-      private ByteBuffer mBuffer = ByteBuffer.allocateDirect(2);
+      private ByteBuffer mBuffer = ByteBuffer.allocateDirect(3);
       private int mPort = 0;
-      private ArrayList<Double> m_Last10Dist;
-      private double m_TotalDist = 0;
-      private int m_Dist = 0;
-      private double m_Average = 0;
+      private int mAcqConfigExtra = 0;
+      private int mLastRawSample = -1;
+      private double mLastSampleTime = 0;
+      private int mMeasureCount = 0;
+      private int mSignalStrength = 0;
+      private final HampelFilter mOutlierFilter = new HampelFilter(OUTLIER_WINDOW, OUTLIER_SIGMAS, OUTLIER_MIN_CM);
+      private volatile int mMinSignalStrength = 0;
+
+      // Ring buffer of the latest readings in inches, owned by the acquisition thread
+      private double[] mWindow = new double[DEFAULT_WINDOW];
+      private int mWindowIndex = 0;
+      private int mWindowCount = 0;
+      private double mWindowSum = 0;
+      private double mWindowSumSquares = 0;
+
+      // Written only by the acquisition thread, read by anyone
+      private volatile Reading mReading = new Reading(0, 0, Quality.Error, 0, 0, 0, 0, 0);
+      private volatile boolean mClearRequested = false;
+      private volatile int mRequestedWindow = DEFAULT_WINDOW;
+      private volatile boolean mRunning = true;
+      // Seconds between free running measurements, 0 when each one is triggered
+      private volatile double mContinuousPeriod = 0;
+      private Thread mAcquisitionThread;
+
+      //----------------------------------------------------------------------------
+      // Class Name: Reading
+      //
+      // Purpose:
+      //  One published measurement. It is never changed after it is created so
+      //  a reader always gets a distance, statistics and time that belong together.
+      //----------------------------------------------------------------------------
+      private static final class Reading
+      {
+        final int distanceCm;
+        final int signalStrength;
+        final Quality quality;
+        final double averageInches;
+        final double variance;
+        final double minInches;
+        final double maxInches;
+        final double timestamp;
+
+        Reading(int distanceCm, int signalStrength, Quality quality, double averageInches, double variance,
+                double minInches, double maxInches, double timestamp)
+        {
+          this.distanceCm = distanceCm;
+          this.signalStrength = signalStrength;
+          this.quality = quality;
+          this.averageInches = averageInches;
+          this.variance = variance;
+          this.minInches = minInches;
+          this.maxInches = maxInches;
+          this.timestamp = timestamp;
+        }
+      }
       
 
       // --------------------------------------------------------------------
@@ -120,49 +197,393 @@ public class GarminLidar
       //BY ROAN THE MAGNIFICENT, OUR PROGRAMMING OVERLORD
       public GarminLidar()
       {
-        mPort = Port.kOnboard.value;
+        this(Port.kOnboard.value);
         I2CJNI.i2CInitialize(mPort);
         
         //this.turnOnDebug();
         this.setI2CAddressToSerialNumber(m_Address, m_Serial, true);
         this.configure(GarminLidar.BALANCED_PERFORMANCE);
         this.turnOffDebug();
-        m_Last10Dist = new ArrayList<Double>();
-        m_TotalDist = 0;
-        clearAverage();
+
+        mAcquisitionThread = new Thread(this::acquire, "GarminLidar");
+        mAcquisitionThread.setDaemon(true);
+        mAcquisitionThread.start();
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Constructor for a unit on a LidarBus
+      //
+      // Notes:
+      // The bus owns the port, sets the address and takes the readings
+      // --------------------------------------------------------------------
+      GarminLidar(int port)
+      {
+        mPort = port;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Body of the acquisition thread, measures as fast as the sensor allows
+      // and publishes each result
+      //
+      // Notes:
+      // All bus traffic happens here, so no caller ever waits on I2C
+      // --------------------------------------------------------------------
+      private void acquire()
+      {
+        while(true == mRunning)
+        {
+          if(mContinuousPeriod > 0)
+          {
+            // The unit measures by itself, wait for its next result
+            Timer.delay(mContinuousPeriod);
+          }
+
+          // Back off instead of spinning on the bus when the unit is not answering
+          int distance = sample();
+          if(distance > ER_LAST_ERROR && ER_STALE_SAMPLE != distance)
+          {
+            Timer.delay(ERROR_BACKOFF_SECONDS);
+          }
+        }
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Take one reading and publish it. Returns the distance in cm or an
+      // error code.
+      //
+      // Notes:
+      // Only called from one thread, the acquisition thread or the LidarBus
+      // that owns the unit
+      // --------------------------------------------------------------------
+      int sample()
+      {
+        int distance;
+        if(mContinuousPeriod > 0)
+        {
+          // Just pick up the latest result
+          distance = sampleContinuous();
+          if(ER_STALE_SAMPLE == distance)
+          {
+            return distance;
+          }
+        }
+        else
+        {
+          // The datasheet recommends a receiver bias correction every 100 readings
+          distance = measure(0 == (mMeasureCount % BIAS_CORRECTION_INTERVAL));
+          mMeasureCount++;
+        }
+
+        if(distance > ER_LAST_ERROR)
+        {
+          publishRejected(distance, Quality.Error);
+          return distance;
+        }
+
+        if(mRequestedWindow != mWindow.length)
+        {
+          mWindow = new double[mRequestedWindow];
+          mClearRequested = true;
+        }
+        if(true == mClearRequested)
+        {
+          clearWindow();
+          mOutlierFilter.reset();
+          mClearRequested = false;
+        }
+
+        Quality quality = classify(distance);
+        if(Quality.Valid == quality)
+        {
+          addValue(distance / 2.54);
+          publish(distance);
+        }
+        else
+        {
+          publishRejected(distance, quality);
+        }
+        return distance;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Stop taking readings
+      //
+      // Notes:
+      // The last reading stays available
+      // --------------------------------------------------------------------
+      public void stop()
+      {
+        mRunning = false;
+      }
+
+      boolean isRunning()
+      {
+        return mRunning;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Talk to the unit at a different address
+      //
+      // Notes:
+      // Does not change the address of the unit itself
+      // --------------------------------------------------------------------
+      synchronized void useAddress(int i2cAddress)
+      {
+        mAddress = (byte)i2cAddress;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Let the unit measure by itself at about rateHz
+      //
+      // Notes:
+      // Each sample is then a single read of the result registers instead of
+      // a trigger, busy polling and a read. The unit can delay between
+      // 0.5 ms and 127.5 ms, so the rate is held between about 8 and 500 Hz.
+      // Call this after configure().
+      // --------------------------------------------------------------------
+      public synchronized int startContinuous(double rateHz)
+      {
+        int delay = (int) Math.round(MEASURE_DELAY_TICKS_PER_SECOND / rateHz);
+        delay = Math.max(1, Math.min(0xFF, delay));
+
+        int error = write(OUTER_LOOP_COUNT, REPEAT_FOREVER);
+        if(error > ER_LAST_ERROR)
+        {
+          return error;
+        }
+        write(MEASURE_DELAY, delay);
+        mAcqConfigExtra = USE_MEASURE_DELAY;
+        writeAcqConfig(QUICK_TERM_MEASURMENT);
+        mLastRawSample = -1;
+        error = write(ACQ_COMMAND, WITH_RECEIVER_BIAS);
+        mContinuousPeriod = delay / MEASURE_DELAY_TICKS_PER_SECOND;
+        return error;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Go back to triggering each measurement
+      //
+      // Notes:
+      // None
+      // --------------------------------------------------------------------
+      public synchronized int stopContinuous()
+      {
+        mContinuousPeriod = 0;
+        mAcqConfigExtra = 0;
+        int error = write(OUTER_LOOP_COUNT, SINGLE_MEASUREMENT);
+        writeAcqConfig(QUICK_TERM_MEASURMENT);
+        return error;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Returns true when no new reading has come in for several periods
+      //
+      // Notes:
+      // Only meaningful in continuous mode
+      // --------------------------------------------------------------------
+      public boolean isStale()
+      {
+        double period = mContinuousPeriod;
+        return period > 0 && Timer.getFPGATimestamp() - mReading.timestamp > STALE_PERIODS * period;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Start the free running measurements again with the same settings
+      //
+      // Notes:
+      // None
+      // --------------------------------------------------------------------
+      private synchronized void restartContinuous()
+      {
+        if(mContinuousPeriod > 0)
+        {
+          startContinuous(1 / mContinuousPeriod);
+        }
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Add a reading to the ring buffer, replacing the oldest one
+      //
+      // Notes:
+      // The running sums are recomputed exactly once per lap of the buffer so
+      // floating point error cannot build up
+      // --------------------------------------------------------------------
+      private void addValue(double inches)
+      {
+        double old = mWindow[mWindowIndex];
+        if(mWindowCount == mWindow.length)
+        {
+          mWindowSum -= old;
+          mWindowSumSquares -= old * old;
+        }
+        else
+        {
+          mWindowCount++;
+        }
+        mWindow[mWindowIndex] = inches;
+        mWindowSum += inches;
+        mWindowSumSquares += inches * inches;
+
+        mWindowIndex++;
+        if(mWindowIndex == mWindow.length)
+        {
+          mWindowIndex = 0;
+          mWindowSum = 0;
+          mWindowSumSquares = 0;
+          for(int i = 0; i < mWindowCount; i++)
+          {
+            mWindowSum += mWindow[i];
+            mWindowSumSquares += mWindow[i] * mWindow[i];
+          }
+        }
+      }
+
+      private void clearWindow()
+      {
+        mWindowIndex = 0;
+        mWindowCount = 0;
+        mWindowSum = 0;
+        mWindowSumSquares = 0;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Decide whether a distance that came back without an error can be used
+      //
+      // Notes:
+      // Every in range reading with enough signal goes through the outlier
+      // filter, so a real jump in distance is accepted after a few readings
+      // --------------------------------------------------------------------
+      private Quality classify(int distanceCm)
+      {
+        if(distanceCm <= 0 || distanceCm > MAX_RANGE_CM)
+        {
+          return Quality.OutOfRange;
+        }
+        if(mSignalStrength < mMinSignalStrength)
+        {
+          return Quality.WeakSignal;
+        }
+        if(false == mOutlierFilter.accept(distanceCm))
+        {
+          return Quality.Outlier;
+        }
+        return Quality.Valid;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Publish a reading that was not used, keeping the last statistics
+      //
+      // Notes:
+      // None
+      // --------------------------------------------------------------------
+      private void publishRejected(int distanceCm, Quality quality)
+      {
+        Reading last = mReading;
+        mReading = new Reading(distanceCm, mSignalStrength, quality, last.averageInches, last.variance,
+                               last.minInches, last.maxInches, Timer.getFPGATimestamp());
       }
 
-      public void addValue() {
-        // add value to array here
-        m_Dist = this.distance(false);
-        m_Dist /= 2.54;
-        if(m_Last10Dist.size() == 10) {
-          m_TotalDist -= m_Last10Dist.get(0);
-          m_TotalDist += m_Dist;
-          m_Last10Dist.remove(0);
-          m_Last10Dist.add(Double.valueOf(m_Dist));
-        } else {
-          m_Last10Dist.add(Double.valueOf(m_Dist));
-          m_TotalDist += m_Dist;
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Work out the window statistics and publish them with the reading
+      //
+      // Notes:
+      // Min and max are a scan of the window, which is small
+      // --------------------------------------------------------------------
+      private void publish(int distanceCm)
+      {
+        double average = mWindowSum / mWindowCount;
+        double variance = Math.max(0, mWindowSumSquares / mWindowCount - average * average);
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < mWindowCount; i++)
+        {
+          min = Math.min(min, mWindow[i]);
+          max = Math.max(max, mWindow[i]);
         }
+        mReading = new Reading(distanceCm, mSignalStrength, Quality.Valid, average, variance, min, max,
+                               Timer.getFPGATimestamp());
       }
 
       public void clearAverage() {
-        // clear average values
-        m_Last10Dist.clear();
-        m_TotalDist = 0;
-        m_Average = 0;
+        // the acquisition thread clears the values before its next reading
+        mClearRequested = true;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Set how many readings are averaged
+      //
+      // Notes:
+      // The window starts over empty at the new length
+      // --------------------------------------------------------------------
+      public void setAverageWindow(int readings)
+      {
+        mRequestedWindow = Math.max(1, readings);
       }
 
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Reject readings with a signal strength below this, 0 turns it off
+      //
+      // Notes:
+      // The strength is the peak correlation, from 0 to 255
+      // --------------------------------------------------------------------
+      public void setMinimumSignalStrength(int strength)
+      {
+        mMinSignalStrength = strength;
+      }
+
+      // Average of the last valid readings in inches, never blocks
       public int getAverage() {
-        // return average
-        addValue();
-        m_Average = m_TotalDist / m_Last10Dist.size();
-        return (int) m_Average;
+        return (int) mReading.averageInches;
+      }
+
+      // Variance of the last readings in inches squared
+      public double getVariance() {
+        return mReading.variance;
+      }
+
+      // Smallest of the last readings in inches
+      public double getMin() {
+        return mReading.minInches;
       }
 
+      // Largest of the last readings in inches
+      public double getMax() {
+        return mReading.maxInches;
+      }
+
+      // Latest reading in cm or error code, check getQuality() before using it
       public int getNow() {
-        return(distance(false));
+        return mReading.distanceCm;
+      }
+
+      // How much the latest reading can be trusted
+      public Quality getQuality() {
+        return mReading.quality;
+      }
+
+      // Signal strength of the latest reading
+      public int getSignalStrength() {
+        return mReading.signalStrength;
+      }
+
+      // FPGA time in seconds of the latest reading
+      public double getTimestamp() {
+        return mReading.timestamp;
       }
       
       // --------------------------------------------------------------------
@@ -196,7 +617,7 @@ public class GarminLidar
       // Notes:
       // This method assumes that only one Lidar is connected to the I2C bus
       // --------------------------------------------------------------------
-      public int getSerialNumber()
+      public synchronized int getSerialNumber()
       {
         // read the serial number
         int error = read ( (UINT_ID_HIGH | READ_TWO_BYTES), false);
@@ -225,7 +646,7 @@ public class GarminLidar
       // Notes:
       // Once this function returns clean, then the unit no longer listens on 0x62
       // --------------------------------------------------------------------
-      public int setI2CAddressToSerialNumber(int i2cAddress, int serialNumber, boolean keepDefault)
+      public synchronized int setI2CAddressToSerialNumber(int i2cAddress, int serialNumber, boolean keepDefault)
       {
         int error = 0;
 
@@ -268,7 +689,7 @@ public class GarminLidar
       // Notes:
       // None
       // --------------------------------------------------------------------
-      public int configure(int configuration)
+      public synchronized int configure(int configuration)
       {
         int returnValue = OK_RETURNED_GOOD;
 
@@ -276,37 +697,37 @@ public class GarminLidar
         {
           case BALANCED_PERFORMANCE: // Default mode, balanced performance
             returnValue = write(SIG_COUNT_VAL,    MIDDLE_ACQUISITONS);    // Default
-            write(ACQ_CONFIG_REG,   QUICK_TERM_MEASURMENT); // Default
+            writeAcqConfig(QUICK_TERM_MEASURMENT); // Default
             write(THRESHOLD_BHYPASS,DEFAULT_THRESHOLD);     // Default
           break;
       
           case SHORT_RANGE_HIGH_SPEED: // Short range, high speed
             returnValue = write(SIG_COUNT_VAL,    LOW_ACQUISITONS);
-            write(ACQ_CONFIG_REG,   QUICK_TERM_MEASURMENT); // Default
+            writeAcqConfig(QUICK_TERM_MEASURMENT); // Default
             write(THRESHOLD_BHYPASS,DEFAULT_THRESHOLD);     // Default
           break;
       
           case DEFAULT_RANGE: // Default range, higher speed short range
             returnValue = write(SIG_COUNT_VAL,    MIDDLE_ACQUISITONS); // Default
-            write(ACQ_CONFIG_REG,   CLEAR_ACQ_CONFIG);
+            writeAcqConfig(CLEAR_ACQ_CONFIG);
             write(THRESHOLD_BHYPASS,DEFAULT_THRESHOLD);  // Default
           break;
       
           case MAXIMUM_RANGE: // Maximum range
             returnValue = write(SIG_COUNT_VAL,    MAX_ACQUISITONS);
-            write(ACQ_CONFIG_REG,   QUICK_TERM_MEASURMENT); // Default
+            writeAcqConfig(QUICK_TERM_MEASURMENT); // Default
             write(THRESHOLD_BHYPASS,DEFAULT_THRESHOLD);     // Default
           break;
       
           case HIGH_SENSITIVITY_DETECTION: // High sensitivity detection, high erroneous measurements
             returnValue = write(SIG_COUNT_VAL,    MIDDLE_ACQUISITONS);    // Default
-            write(ACQ_CONFIG_REG,   QUICK_TERM_MEASURMENT); // Default
+            writeAcqConfig(QUICK_TERM_MEASURMENT); // Default
             write(THRESHOLD_BHYPASS,MIDDLE_THRESHOLD);
           break;
       
           case LOW_SENSITIVITY_DETECTION: // Low sensitivity detection, low erroneous measurements
             returnValue = write(SIG_COUNT_VAL,    MIDDLE_ACQUISITONS);    // Default
-            write(ACQ_CONFIG_REG,   QUICK_TERM_MEASURMENT); // Default
+            writeAcqConfig(QUICK_TERM_MEASURMENT); // Default
             write(THRESHOLD_BHYPASS,HIGH_THRESHOLD);
           break;
         }
@@ -320,7 +741,7 @@ public class GarminLidar
       // Notes:
       // none
       // --------------------------------------------------------------------
-      public int distance(boolean biasCorrection)
+      public synchronized int distance(boolean biasCorrection)
       {
         if(true == biasCorrection)
         {
@@ -343,10 +764,122 @@ public class GarminLidar
         {
           return error;
         }
-        return mBuffer.getShort(0);
+        // Unsigned, so a bad reading of 0xFFFF is not mistaken for -1 cm
+        return mBuffer.getShort(0) & 0xFFFF;
       }
 
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Take one measurement and wait for it to finish. Returns the distance
+      // in cm or an error code.
+      //
+      // Notes:
+      // Unlike distance() this waits for the busy flag, so the result is the
+      // measurement that was just triggered
+      // --------------------------------------------------------------------
+      private synchronized int measure(boolean biasCorrection)
+      {
+        int error = write(ACQ_COMMAND, (true == biasCorrection) ? WITH_RECEIVER_BIAS : WITHOUT_RECEIVER_BIAS);
+        if(error > ER_LAST_ERROR)
+        {
+          return error;
+        }
+
+        for(int retry = 0; retry < BUSY_RETRIES; retry++)
+        {
+          // The peak correlation comes before the distance registers, read them together
+          error = read((PEAK_CORR | READ_TWO_BYTES), true, 3);
+          if(ER_TIMEOUT_EXPIRED != error)
+          {
+            break;
+          }
+        }
+
+        if(error > ER_LAST_ERROR)
+        {
+          return error;
+        }
+        mSignalStrength = mBuffer.get(0) & 0xFF;
+        return mBuffer.getShort(1) & 0xFFFF;
+      }
     
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Read the latest free running result. Returns the distance in cm,
+      // ER_STALE_SAMPLE when the unit has not finished a new one, or an error.
+      //
+      // Notes:
+      // The peak correlation is read together with the distance in one
+      // transaction. An unchanged pair read again within one period is the
+      // same sample. After a period it is a new one from a steady target,
+      // unless the unit has stopped repeating, which is checked on the unit
+      // itself before it is restarted.
+      // --------------------------------------------------------------------
+      private synchronized int sampleContinuous()
+      {
+        int error = read((PEAK_CORR | READ_TWO_BYTES), false, 3);
+        if(error > ER_LAST_ERROR)
+        {
+          return error;
+        }
+
+        int raw = ((mBuffer.get(0) & 0xFF) << 16) | (mBuffer.getShort(1) & 0xFFFF);
+        double now = Timer.getFPGATimestamp();
+        if(raw == mLastRawSample)
+        {
+          if(now - mLastSampleTime < mContinuousPeriod)
+          {
+            return ER_STALE_SAMPLE;
+          }
+          error = checkRepeating();
+          if(error > ER_LAST_ERROR)
+          {
+            return error;
+          }
+        }
+        mLastRawSample = raw;
+        mLastSampleTime = now;
+        mSignalStrength = (raw >> 16) & 0xFF;
+        return raw & 0xFFFF;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Make sure the unit is still measuring by itself, restarting it if
+      // not. Returns ER_STALE_SAMPLE after a restart, or an error.
+      //
+      // Notes:
+      // A brownout resets the outer loop count to its default, so a unit
+      // that stopped repeating reads back something other than forever
+      // --------------------------------------------------------------------
+      private int checkRepeating()
+      {
+        int error = read(OUTER_LOOP_COUNT, false, 1);
+        if(error > ER_LAST_ERROR)
+        {
+          return error;
+        }
+        if(REPEAT_FOREVER != (mBuffer.get(0) & 0xFF))
+        {
+          restartContinuous();
+          return ER_STALE_SAMPLE;
+        }
+        return OK_RETURNED_GOOD;
+      }
+
+      // --------------------------------------------------------------------
+      // Purpose:
+      // Write the acquisition config, keeping the continuous mode bits
+      //
+      // Notes:
+      // None
+      // --------------------------------------------------------------------
+      private int writeAcqConfig(int value)
+      {
+        return write(ACQ_CONFIG_REG, value | mAcqConfigExtra);
+      }
+
       // --------------------------------------------------------------------
       // Purpose:
       // Write data to the I2C port
@@ -386,6 +919,11 @@ public class GarminLidar
       // None
       // --------------------------------------------------------------------
       int read(int registerAddress, boolean monitorBusyFlag)
+      {
+        return read(registerAddress, monitorBusyFlag, 2);
+      }
+
+      int read(int registerAddress, boolean monitorBusyFlag, int count)
       {
         int error = 0;
         int busyCounter = 0;
@@ -434,17 +972,17 @@ public class GarminLidar
           
         }
       
+        // The unit is not busy or we did not care
         mBuffer.put(0,(byte)registerAddress);
-        error = I2CJNI.i2CWrite(mPort, mAddress, mBuffer, (byte)1);
-      // The unit is not busy or we did not care
-        error = I2CJNI.i2CRead(mPort, mAddress, mBuffer, (byte)2);
-        error = 1;
+        int writeError = I2CJNI.i2CWrite(mPort, mAddress, mBuffer, (byte)1);
+        // Skip the read when the register write was not acknowledged
+        int readError = (1 == writeError) ? I2CJNI.i2CRead(mPort, mAddress, mBuffer, (byte)count) : writeError;
         // A nack means the device is not responding, report the error over serial
-        if(1 != error)
+        if(1 != writeError || 1 != readError)
         {
           if(true == mDebug)
           {
-            System.out.printf("No responce from read command, error=%d\n",error);
+            System.out.printf("No responce from read command, write=%d read=%d\n",writeError,readError);
           }
           return ER_NO_RESPONSE;
         }
@@ -0,0 +1,84 @@
+package frc.robot.sensors;
+
+/**
+ * Flags single samples that are far from the recent ones. A sample is an
+ * outlier when it is more than a number of standard deviations from the median
+ * of the previous samples, with the standard deviation estimated from the
+ * median absolute deviation so the outliers themselves barely move it.
+ * <p>
+ * Every sample is kept in the history, accepted or not, so a real step change
+ * is accepted again once it makes up half the window.
+ * </p>
+ */
+final class HampelFilter {
+    // scales the median absolute deviation to a standard deviation for normal noise
+    private static final double MAD_TO_SIGMA = 1.4826;
+    // fewer samples than this are always accepted
+    private static final int MIN_SAMPLES = 3;
+
+    private final double[] history;
+    private final double[] scratch;
+    private final double sigmas;
+    private final double minThreshold;
+    private int index;
+    private int count;
+
+    /**
+     * @param window       how many previous samples to compare against
+     * @param sigmas       how many standard deviations from the median is an
+     *                     outlier
+     * @param minThreshold the smallest distance from the median that is an
+     *                     outlier, so identical samples do not reject every
+     *                     small change
+     */
+    HampelFilter(int window, double sigmas, double minThreshold) {
+        history = new double[window];
+        scratch = new double[window];
+        this.sigmas = sigmas;
+        this.minThreshold = minThreshold;
+    }
+
+    /**
+     * Adds a sample and returns true when it is not an outlier
+     */
+    boolean accept(double sample) {
+        boolean accepted = true;
+        if (count >= MIN_SAMPLES) {
+            double median = median(history, count);
+            for (int i = 0; i < count; i++) {
+                scratch[i] = Math.abs(history[i] - median);
+            }
+            double threshold = Math.max(minThreshold, sigmas * MAD_TO_SIGMA * medianInPlace(scratch, count));
+            accepted = Math.abs(sample - median) <= threshold;
+        }
+
+        history[index] = sample;
+        index = (index + 1) % history.length;
+        if (count < history.length) count++;
+        return accepted;
+    }
+
+    void reset() {
+        index = 0;
+        count = 0;
+    }
+
+    private double median(double[] values, int n) {
+        System.arraycopy(values, 0, scratch, 0, n);
+        return medianInPlace(scratch, n);
+    }
+
+    // insertion sort, the window is only a handful of samples
+    private static double medianInPlace(double[] values, int n) {
+        for (int i = 1; i < n; i++) {
+            double v = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > v) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = v;
+        }
+        return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+}
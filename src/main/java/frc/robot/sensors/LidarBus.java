@@ -0,0 +1,116 @@
+package frc.robot.sensors;
+
+import java.util.Arrays;
+
+import edu.wpi.first.hal.I2CJNI;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.I2C.Port;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Runs several Garmin lidars on one I2C port from a single thread. At startup
+ * every unit answers on the default address, so each one is moved to its own
+ * address by matching its serial number. After that the units are measured
+ * round-robin: one is triggered and read before the next is fired, so two
+ * lasers never range at the same time and see each other's pulses, and only
+ * one thread ever blocks on the bus.
+ * <p>
+ * Units on a bus should be left in triggered mode, a free running unit fires
+ * whenever it likes and brings the crosstalk back.
+ * </p>
+ * <p>
+ * Ex: bus = new LidarBus(Port.kOnboard);
+ * left = bus.addUnit(Constants.LEFT_DISTANCE_SENSOR_ID, leftSerialNumber);
+ * right = bus.addUnit(Constants.RIGHT_DISTANCE_SENSOR_ID, rightSerialNumber);
+ * bus.start();
+ * </p>
+ */
+public class LidarBus {
+    // the highest 7 bit address a unit can be moved to
+    private static final int MAX_ADDRESS = 0x77;
+    private static final double BACKOFF_SECONDS = 0.01;
+
+    private final int port;
+    // replaced as a whole when a unit is added, so the thread never sees it change
+    private volatile GarminLidar[] units = new GarminLidar[0];
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Takes over an I2C port, no other code should open a GarminLidar on it
+     */
+    public LidarBus(Port port) {
+        this.port = port.value;
+        I2CJNI.i2CInitialize(this.port);
+    }
+
+    /**
+     * Moves the unit with a serial number to its own address and adds it to the
+     * bus. The address is the default plus twice the id, so ids from 1 to 10
+     * can be used.
+     */
+    public synchronized GarminLidar addUnit(int id, int serialNumber) {
+        int address = GarminLidar.DEFAULT_ADDRESS + 2 * id;
+        if (id < 1 || address > MAX_ADDRESS) {
+            throw new IllegalArgumentException("Lidar id " + id + " is out of range, use 1 to 10");
+        }
+        GarminLidar unit = new GarminLidar(port);
+
+        // the unit keeps its address until it is power cycled, so it may already be moved
+        unit.useAddress(address);
+        if ((unit.getSerialNumber() & 0xFFFF) != (serialNumber & 0xFFFF)) {
+            unit.useAddress(GarminLidar.DEFAULT_ADDRESS);
+            int error = unit.setI2CAddressToSerialNumber(address, serialNumber, false);
+            if (error > GarminLidar.ER_LAST_ERROR) {
+                DriverStation.reportError("Lidar " + id + " with serial number 0x" + Integer.toHexString(serialNumber)
+                        + " did not answer", false);
+            }
+        }
+        unit.configure(GarminLidar.BALANCED_PERFORMANCE);
+
+        GarminLidar[] next = Arrays.copyOf(units, units.length + 1);
+        next[units.length] = unit;
+        units = next;
+        return unit;
+    }
+
+    /**
+     * Starts measuring the units
+     */
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this::run, "LidarBus");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops measuring and waits for the current reading to finish. The last
+     * readings stay available
+     */
+    public synchronized void stop() {
+        if (thread == null) return;
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void run() {
+        while (running) {
+            boolean answered = false;
+            for (GarminLidar unit : units) {
+                if (!unit.isRunning()) continue;
+                answered |= unit.sample() <= GarminLidar.ER_LAST_ERROR;
+            }
+            // back off instead of spinning on the bus when nothing is answering
+            if (!answered) {
+                Timer.delay(BACKOFF_SECONDS);
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package frc.robot.subsystems;
 
 import edu.wpi.first.wpilibj.RobotState;
+import edu.wpi.first.wpilibj.util.Units;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.robot.Constants;
 import frc.robot.OI;
 import frc.robot.motors.Motor;
+import frc.robot.motors.MotorGroup;
 import frc.robot.motors.Motor.SetMode;
 import frc.robot.motors.Motor.Slot;
 import frc.robot.sensors.Pigeon;
@@ -16,8 +19,9 @@ public class DrivebaseSubsystem extends SubsystemBase {
 	private Motor rightMaster;
 	private Motor rightFollower;
 	private Pigeon pidgey;
+	private MotorGroup drive;
 
-	private double maxEncoderCountsPer100ms;
+	private double maxEncoderCountsPer100ms = Constants.kMaxUnitsPer_100ms;
 
 	public static Concensus shouldLowerSpeed = new Concensus(ConcensusMode.Any);
 
@@ -38,16 +42,17 @@ public class DrivebaseSubsystem extends SubsystemBase {
 		rightMaster.setConversionFactor(1.0 / maxEncoderCountsPer100ms);
 		leftMaster.setConversionFactor(1.0 / maxEncoderCountsPer100ms);
 
-		rightMaster.setAuxiliarySource(() -> pidgey.getContinuousYaw() / 180.0);
-		leftMaster.setAuxiliarySource(() -> -pidgey.getContinuousYaw() / 180.0);
+		// one heading read per cycle, both sides written together
+		drive = new MotorGroup(leftMaster, rightMaster, () -> pidgey.getContinuousYaw() / 180.0);
 
-		rightMaster.setPIDF(Slot.Velocity, 0, 0, 0, 0, 0);
-		rightMaster.setPIDF(Slot.Auxiliary, 0, 0, 0, 0, 0);
-		rightMaster.setPIDF(Slot.Position, 0, 0, 0, 0, 0);
+		drive.setPIDF(Slot.Velocity, 0, 0, 0, 0, 0);
+		drive.setPIDF(Slot.Auxiliary, 0, 0, 0, 0, 0);
+		drive.setPIDF(Slot.Position, 0, 0, 0, 0, 0);
 
-		leftMaster.setPIDF(Slot.Velocity, 0, 0, 0, 0, 0);
-		leftMaster.setPIDF(Slot.Auxiliary, 0, 0, 0, 0, 0);
-		leftMaster.setPIDF(Slot.Position, 0, 0, 0, 0, 0);
+		// velocities are a fraction of top speed, the characterization is in meters per second
+		double metersPerSecondAtFullSpeed = Units.feetToMeters(Constants.kMaxFTPerSecond);
+		rightMaster.setFeedforward(Slot.Velocity, Constants.FEED_FORWARD, metersPerSecondAtFullSpeed);
+		leftMaster.setFeedforward(Slot.Velocity, Constants.FEED_FORWARD, metersPerSecondAtFullSpeed);
 	}
 	@Override
 	public void periodic() {
@@ -60,13 +65,11 @@ public class DrivebaseSubsystem extends SubsystemBase {
 				turn *= 0.5;
 			}
 
-			rightMaster.set(throttle + turn);
-			leftMaster.set(throttle - turn);
+			drive.set(throttle, turn);
 		} else if(RobotState.isTest()) {
 			double throttle = OI.getXboxLeftJoystickY();
 
-			rightMaster.set(SetMode.Velocity, throttle, 0);
-			leftMaster.set(SetMode.Velocity, throttle, 0);
+			drive.set(SetMode.Velocity, throttle, 0);
 		}
 	}
 }
\ No newline at end of file
@@ -26,6 +26,7 @@ public class ShooterSubsystem extends SubsystemBase {
 
         shooterMap = new HashMap<Integer, Double>();
         lidarSensor = new GarminLidar();
+        lidarSensor.startContinuous(100);
         
         shooterMap.put(80, 110512.0);
         shooterMap.put(81, 106598.0);
@@ -64,6 +65,7 @@ public class ShooterSubsystem extends SubsystemBase {
         shooterMap.put(360, 88981.8);
         
         shooterMotor.setPIDF(Slot.Velocity, 0.01764, 0, 0, 0.00851, 0);
+        shooterMotor.setOnboardPID(true);
         shooterMotor.setVoltageCompensation(11);
         shooterMotor.invertMotor();
         shooterMotor.setCurrentLimit(Constants.SHOOTER_CURRENT_LIMIT);
@@ -0,0 +1,70 @@
+package frc.robot.motors;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import frc.robot.motors.Motor.SetMode;
+import frc.robot.motors.Motor.Slot;
+
+/**
+ * Checks that a control cycle allocates nothing once it is warmed up, so the
+ * motor thread never makes garbage for the collector to pause on.
+ */
+public class MotorAllocationTest {
+    private static final SetMode[] modes = { SetMode.Position, SetMode.Velocity, SetMode.Sensor,
+            SetMode.PercentOutput };
+    private static final int warmupCycles = 20_000;
+    private static final int measuredCycles = 10_000;
+    private static final long periodNanos = 2_000_000L;
+
+    // a crude plant so every cycle sees a new sample
+    private double position;
+    private double velocity;
+    private double sensor;
+    private double output;
+
+    private long now;
+
+    @Test
+    public void cycleAllocatesNothing() {
+        Motor motor = Motor.createDetached(() -> position, () -> velocity, p -> output = p);
+        motor.setSensorSource(() -> sensor);
+        motor.setPIDF(Slot.Position, 0.1, 0.001, 0.5, 0, 100);
+        motor.setPIDF(Slot.Velocity, 0.01, 0.0001, 0, 0.002, 100);
+        motor.setPIDF(Slot.Sens, 0.1, 0, 0, 0, 0);
+        Motor[] motors = { motor };
+
+        // every mode goes through the JIT before anything is measured
+        for (SetMode mode : modes) {
+            motor.set(mode, 1);
+            runCycles(motors, warmupCycles);
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (SetMode mode : modes) {
+            // publishing a command allocates its snapshot, that is not part of the cycle
+            motor.set(mode, 2);
+            runCycles(motors, 10);
+
+            long before = threads.getThreadAllocatedBytes(thread);
+            runCycles(motors, measuredCycles);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            assertEquals(mode + " cycles allocated " + allocated + " bytes", 0, allocated);
+        }
+    }
+
+    private void runCycles(Motor[] motors, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            now += periodNanos;
+            Motor.runCycle(motors, now);
+            velocity += (output - velocity * 0.1) * 0.02;
+            position += velocity * 0.002;
+            sensor = position * 0.5;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package frc.robot.motors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import frc.robot.motors.Motor.Slot;
+import frc.robot.motors.Motor.TuningRule;
+
+/**
+ * Runs the relay autotune against a simulated flywheel on the stepped clock,
+ * so a full experiment takes a fraction of a second.
+ */
+public class MotorAutotuneTest {
+    private static final double setPoint = 3000;
+    private static final double amplitude = 0.2;
+    private static final double hysteresis = 50;
+    // stepped time allowed for an experiment, past the autotuner's own timeout
+    private static final int maxTicks = 30_000;
+
+    private static final List<String> results = new ArrayList<>();
+    private static final List<String> failures = new ArrayList<>();
+
+    @BeforeClass
+    public static void steppedClock() {
+        // collect the reports instead of sending them to the driver station
+        Motor.autotuneResult = results::add;
+        Motor.autotuneFailure = failures::add;
+        Motor.setSimulation(true);
+        Motor.setSteppedClock(true);
+    }
+
+    @Test
+    public void velocityTuneConverges() {
+        Motor motor = Motor.createSimulated(40, SimulatedMotor.falcon500(1, 0.004));
+        motor.setUpdateRate(200);
+        // a rough kFF puts the relay near the output that holds the setpoint
+        motor.setPIDF(Slot.Velocity, 0, 0, 0, 1 / 6000.0, 0);
+
+        RelayAutotuner tuner = motor.startAutotune(Slot.Velocity, setPoint, amplitude, hysteresis);
+        runUntilDone(tuner);
+        assertTrue("relay did not oscillate", tuner.hasSucceeded());
+
+        double ku = tuner.getUltimateGain();
+        double pu = tuner.getUltimatePeriodMs();
+        assertTrue("Ku " + ku, Double.isFinite(ku) && ku > 0);
+        assertTrue("Pu " + pu, Double.isFinite(pu) && pu > 0);
+        assertTrue("kFF " + tuner.getFeedforwardGain(), tuner.getFeedforwardGain() > 0);
+
+        // the motor goes on holding the setpoint with the new gains
+        results.clear();
+        motor.finishAutotune(Slot.Velocity, setPoint, amplitude, tuner, TuningRule.ZieglerNicholsPI);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0), results.get(0).contains("setPIDF(Slot.Velocity"));
+        Motor.stepClock(3000);
+        double velocity = motor.getSimulatedMotor().getVelocity();
+        assertEquals("velocity with the tuned gains", setPoint, velocity, setPoint * 0.02);
+        assertTrue("error " + motor.getError(), Math.abs(motor.getError()) < setPoint * 0.02);
+    }
+
+    @Test
+    public void relayThatCannotReachTheSetpointTimesOut() {
+        Motor motor = Motor.createSimulated(41, SimulatedMotor.falcon500(1, 0.004));
+        motor.setUpdateRate(200);
+
+        // with no kFF the bias is 0, the relay tops out well under 3000 RPM and never switches
+        RelayAutotuner tuner = motor.startAutotune(Slot.Velocity, setPoint, amplitude, hysteresis);
+        runUntilDone(tuner);
+        assertFalse("a relay that never switched succeeded", tuner.hasSucceeded());
+
+        // a failed tune is reported and stops the motor
+        failures.clear();
+        motor.finishAutotune(Slot.Velocity, setPoint, amplitude, tuner, TuningRule.ZieglerNicholsPI);
+        assertEquals(1, failures.size());
+        Motor.stepClock(10);
+        assertEquals(0, motor.getSimulatedMotor().getAppliedOutput(), 1e-9);
+    }
+
+    private static void runUntilDone(RelayAutotuner tuner) {
+        double start = Motor.getSteppedTime();
+        for (int i = 0; i < maxTicks && !tuner.isDone(); i++) {
+            Motor.stepClock(1);
+        }
+        assertTrue("autotune still running after " + (Motor.getSteppedTime() - start) + " s", tuner.isDone());
+    }
+}
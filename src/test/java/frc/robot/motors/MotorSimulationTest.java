@@ -0,0 +1,59 @@
+package frc.robot.motors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import frc.robot.motors.Motor.SetMode;
+import frc.robot.motors.Motor.Slot;
+
+/**
+ * Runs a velocity loop on a simulated motor with the stepped clock, which is
+ * what makes regression testing loop changes off the robot practical.
+ */
+public class MotorSimulationTest {
+    private static final double setPoint = 3000;
+    private static final int simulatedSeconds = 100;
+    // how long the loop may take to get within 1% and stay there
+    private static final double maxSettleSeconds = 2;
+    // wall clock allowed for the whole run, far above what it needs so a slow
+    // build machine does not fail it
+    private static final double maxRealSeconds = 5;
+
+    @BeforeClass
+    public static void steppedClock() {
+        Motor.setSimulation(true);
+        Motor.setSteppedClock(true);
+    }
+
+    @Test
+    public void velocityLoopConvergesFasterThanRealTime() {
+        // the hardware factory hands out a simulated motor
+        Motor motor = Motor.createFalcon500(50);
+        assertTrue("factory did not create a simulated motor", motor.getSimulatedMotor() != null);
+        motor.setUpdateRate(1000);
+        motor.setPIDF(Slot.Velocity, 0.0002, 0.0000005, 0, 1 / 6380.0, 500);
+        motor.set(SetMode.Velocity, setPoint);
+
+        long start = System.nanoTime();
+        double simulatedStart = Motor.getSteppedTime();
+        double settledAt = Double.NaN;
+        for (int s = 0; s < simulatedSeconds * 10; s++) {
+            Motor.stepClock(100);
+            boolean onTarget = Math.abs(motor.getSimulatedMotor().getVelocity() - setPoint) < setPoint * 0.01;
+            if (onTarget && Double.isNaN(settledAt)) {
+                settledAt = Motor.getSteppedTime() - simulatedStart;
+            } else if (!onTarget) {
+                settledAt = Double.NaN;
+            }
+        }
+        double realSeconds = (System.nanoTime() - start) / 1e9;
+
+        assertTrue("velocity loop never settled", !Double.isNaN(settledAt));
+        assertTrue("velocity loop took " + settledAt + " s to settle", settledAt <= maxSettleSeconds);
+        assertEquals(setPoint, motor.getSimulatedMotor().getVelocity(), setPoint * 0.01);
+        assertTrue(simulatedSeconds + " s of simulation took " + realSeconds + " s", realSeconds < maxRealSeconds);
+    }
+}